@@ -29,4 +29,40 @@ public @interface CacheNullable {
     CachingStrategy value() default CachingStrategy.THREAD_SAFE;
 
     String setter() default "";
+
+    /**
+     * The time-to-live for the {@link CachingStrategy#TTL} caching strategy, e.g. {@code "100ms"}, {@code "30s"},
+     * {@code "5m"}, {@code "1h"} or an ISO-8601 duration like {@code "PT30S"}.
+     * The time is measured by {@link System#nanoTime()}, unless the module has a default method named
+     * {@code nanoTime$} which returns the current time in nanoseconds, e.g. a fake clock for testing.
+     */
+    String ttl() default "";
+
+    /**
+     * If {@code true}, then an expired value is rebuilt in the background while callers still get the old value.
+     * The background task runs on the executor returned by the {@code executor$} method of the module, if any, or else
+     * on the common fork-join pool.
+     * If this fails, then callers keep getting the old value until it has expired for another time-to-live.
+     * Then it is rebuilt synchronously, so that any failure propagates to the caller, with the last failure of the
+     * background task as a suppressed exception.
+     * Only applies to the {@link CachingStrategy#TTL} caching strategy.
+     */
+    boolean refreshAhead() default false;
+
+    /**
+     * The time to remember a failure of the {@link CachingStrategy#THREAD_SAFE} caching strategy, e.g. {@code "100ms"}.
+     * Within this time, an {@link IllegalStateException} with the last exception as its cause is thrown without calling
+     * the method again.
+     * The backoff doubles with each consecutive failure, up to 64 times the given time.
+     * The time is measured like the {@link #ttl()}.
+     */
+    String backoff() default "";
+
+    /**
+     * The maximum number of entries to cache for a method with parameters, or zero if unbounded.
+     * Exceeding entries are evicted based on how frequently their keys are used.
+     * For the {@link CachingStrategy#POOLED} caching strategy, this is the maximum number of instances in use, or zero
+     * for the number of available processors.
+     */
+    int maxSize() default 0;
 }
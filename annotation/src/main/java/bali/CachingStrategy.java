@@ -20,5 +20,50 @@ public enum CachingStrategy {
     DISABLED,
     NOT_THREAD_SAFE,
     THREAD_SAFE,
-    THREAD_LOCAL
+    THREAD_LOCAL,
+    LOCK_FREE,
+    /**
+     * Caches one instance per scope, which is opened by calling one of the methods named {@code runScoped$} or
+     * {@code callScoped$}, which the companion class implements.
+     * Outside a scope, the instance is not cached and calling the setter throws an {@link IllegalStateException}.
+     * The scope is bound to the calling thread only: It is not propagated to any other thread, not even a child thread
+     * or a virtual thread forked within the scope.
+     */
+    SCOPED,
+    SOFT,
+    WEAK,
+    TTL,
+    /**
+     * Pools up to {@link Cache#maxSize()} instances, which defaults to the number of available processors.
+     * An instance can only be borrowed by declaring and calling a method named {@code <name>$apply} which takes a
+     * {@code java.util.function.Function} and returns its result.
+     * Calling the getter itself always returns a new instance.
+     */
+    POOLED,
+    /**
+     * Caches one instance per thread, but no more instances than about the number of available processors.
+     * An instance is never shared by two live threads, so it doesn't need to be thread-safe, e.g. a random generator
+     * or a string builder.
+     * A thread keeps its instance until it terminates, so that another thread can take it over.
+     * If all instances are taken by live threads, then calling the getter returns a new instance without caching it.
+     * Calling the setter only sets the instance of the calling thread.
+     * A component method falls back to {@link #THREAD_LOCAL} caching.
+     */
+    STRIPED,
+    /**
+     * Caches one instance per class loader in a static final field, which gets initialized on the first call by a new
+     * module instance.
+     * If this call fails, then the failure is permanent: It throws an {@link ExceptionInInitializerError} and every
+     * subsequent call throws a {@link NoClassDefFoundError}.
+     * There is no setter for this caching strategy: Declaring it is an error.
+     */
+    STATIC,
+    /**
+     * Caches the value along with the epoch of the module instance it was built in.
+     * Declaring a method {@code void advanceEpoch$()} in the module interface generates an implementation which
+     * invalidates all values cached with this strategy at once, so that calling their getters builds new values.
+     * A cache hit only compares the epoch of the value with the epoch of the module.
+     * A component method falls back to {@link #THREAD_SAFE} caching.
+     */
+    EPOCH
 }
@@ -16,10 +16,18 @@
 package bali.java.sample.cache;
 
 import bali.Cache;
+import bali.CacheNullable;
+import bali.Lookup;
 import bali.Module;
 
+import java.io.IOException;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import static bali.CachingStrategy.*;
 
@@ -27,6 +35,23 @@ import static bali.CachingStrategy.*;
 @Module
 public interface CacheModule extends SuperModule {
 
+    AtomicInteger nullCount = new AtomicInteger();
+
+    AtomicInteger failureCount = new AtomicInteger();
+
+    AtomicInteger backoffCount = new AtomicInteger();
+
+    AtomicInteger constantFailureCount = new AtomicInteger();
+
+    AtomicInteger refreshFailureCount = new AtomicInteger();
+
+    // The clock of the time-to-live and backoff caches, which the tests advance explicitly.
+    AtomicLong nanoTime = new AtomicLong();
+
+    default long nanoTime$() {
+        return nanoTime.get();
+    }
+
     @Cache(DISABLED)
     Date disabled();
 
@@ -40,6 +65,163 @@ public interface CacheModule extends SuperModule {
     @Cache(THREAD_LOCAL)
     Date threadLocal();
 
+    CacheModule freeze$();
+
+    void releaseThreadLocals$();
+
+    Executor releasingThreadLocals$(Executor executor);
+
+    @Cache(LOCK_FREE)
+    Date lockFree();
+
+    void lockFree(Date date);
+
+    @Cache(SCOPED)
+    Date scoped();
+
+    void scoped(Date date);
+
+    void runScoped$(Runnable task);
+
+    @Cache(SOFT)
+    Date soft();
+
+    void soft(Date date);
+
+    @Cache(WEAK)
+    Date weak();
+
+    @CacheNullable(WEAK)
+    default Date nullWeak() {
+        nullCount.incrementAndGet();
+        return null;
+    }
+
+    @Cache(value = TTL, ttl = "100ms")
+    Date ttl();
+
+    void ttl(Date date);
+
+    @Cache(value = TTL, ttl = "200ms", refreshAhead = true)
+    Date refreshAhead();
+
+    @Cache(value = TTL, ttl = "100ms", refreshAhead = true)
+    default Date failingRefreshAhead() throws IOException {
+        if (0 < refreshFailureCount.getAndIncrement()) {
+            throw new IOException();
+        }
+        return new Date();
+    }
+
+    @Cache(value = TTL, ttl = "PT0.1S")
+    default int ttlInt() {
+        return ThreadLocalRandom.current().nextInt();
+    }
+
+    @Cache
+    default Date keyed(long time) {
+        return new Date(time);
+    }
+
+    @Cache(NOT_THREAD_SAFE)
+    default Date keyedNotThreadSafe(long time) {
+        return new Date(time);
+    }
+
+    @Cache
+    default Date keyedMulti(double time, long offset) {
+        return new Date((long) time + offset);
+    }
+
+    @Cache
+    default Date keyedRecursive(long time) {
+        return keyedRecursive(time);
+    }
+
+    @CacheNullable(NOT_THREAD_SAFE)
+    default Date keyedNull(String name, int value) {
+        nullCount.incrementAndGet();
+        return null;
+    }
+
+    @CacheNullable
+    default Date keyedNullThreadSafe(String name) {
+        nullCount.incrementAndGet();
+        return null == name ? null : new Date();
+    }
+
+    @Cache(value = POOLED, maxSize = 2)
+    default StringBuilder pooled() {
+        return new StringBuilder();
+    }
+
+    <R> R pooled$apply(Function<? super StringBuilder, ? extends R> function);
+
+    @Cache(STRIPED)
+    default StringBuilder striped() {
+        return new StringBuilder();
+    }
+
+    void striped(StringBuilder builder);
+
+    @Cache(STATIC)
+    default Date constant() {
+        return new Date();
+    }
+
+    @Cache(STATIC)
+    default Date constantFailing() {
+        constantFailureCount.incrementAndGet();
+        throw new IllegalStateException();
+    }
+
+    @Cache(EPOCH)
+    Date epoch();
+
+    void epoch(Date date);
+
+    @Cache(EPOCH)
+    default int epochInt() {
+        return ThreadLocalRandom.current().nextInt();
+    }
+
+    @CacheNullable(EPOCH)
+    default Date nullEpoch() {
+        nullCount.incrementAndGet();
+        return null;
+    }
+
+    void advanceEpoch$();
+
+    @Cache(maxSize = 100)
+    default Date bounded(int time) {
+        return new Date(time);
+    }
+
+    Map<String, Long> bounded$cacheStats();
+
+    @CacheNullable(value = NOT_THREAD_SAFE, maxSize = 10)
+    default Date boundedNull(String name) {
+        nullCount.incrementAndGet();
+        return null == name ? null : new Date();
+    }
+
+    @Cache
+    default Date keyedFailing(Date date) throws IOException {
+        if (0 == failureCount.getAndIncrement()) {
+            throw new IOException();
+        }
+        return (Date) date.clone();
+    }
+
+    @Cache(backoff = "100ms")
+    default Date backoff() throws IOException {
+        if (2 > backoffCount.getAndIncrement()) {
+            throw new IOException();
+        }
+        return new Date();
+    }
+
     @Cache
     default Date fixed() {
         return new Date();
@@ -49,4 +231,84 @@ public interface CacheModule extends SuperModule {
     default int randomInt() {
         return ThreadLocalRandom.current().nextInt();
     }
+
+    void randomInt(int value);
+
+    @Cache(NOT_THREAD_SAFE)
+    default double randomDouble() {
+        return ThreadLocalRandom.current().nextDouble();
+    }
+
+    @Cache
+    default long randomLong() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    void randomLong(long value);
+
+    @Cache(LOCK_FREE)
+    default int randomIntLockFree() {
+        return ThreadLocalRandom.current().nextInt();
+    }
+
+    void randomIntLockFree(int value);
+
+    @Cache(LOCK_FREE)
+    default double randomDoubleLockFree() {
+        return ThreadLocalRandom.current().nextDouble();
+    }
+
+    @CacheNullable(NOT_THREAD_SAFE)
+    default Date nullNotThreadSafe() {
+        nullCount.incrementAndGet();
+        return null;
+    }
+
+    @CacheNullable
+    default Date nullThreadSafe() {
+        nullCount.incrementAndGet();
+        return null;
+    }
+
+    void nullThreadSafe(Date date);
+
+    void nullThreadSafe$invalidate();
+
+    @CacheNullable(THREAD_LOCAL)
+    default Date nullThreadLocal() {
+        nullCount.incrementAndGet();
+        return null;
+    }
+
+    @CacheNullable(LOCK_FREE)
+    default Date nullLockFree() {
+        nullCount.incrementAndGet();
+        return null;
+    }
+
+    @CacheNullable(DISABLED)
+    default Date nullDisabled() {
+        nullCount.incrementAndGet();
+        return null;
+    }
+
+    Nulls nulls();
+
+    interface Nulls {
+
+        @Cache(THREAD_LOCAL)
+        Date nullDisabled();
+
+        @Cache(LOCK_FREE)
+        @Lookup(method = "nullDisabled")
+        Date nullDisabledLockFree();
+    }
+
+    StripedComponent stripedComponent();
+
+    interface StripedComponent {
+
+        @Cache(STRIPED)
+        Date disabled();
+    }
 }
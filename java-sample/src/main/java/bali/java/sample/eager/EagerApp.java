@@ -0,0 +1,66 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java.sample.eager;
+
+import bali.Cache;
+import bali.Eager;
+import bali.Make;
+import bali.Module;
+import bali.java.sample.greeting.Formatter;
+import bali.java.sample.greeting.Greeting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+@Cache
+@Eager
+@Module
+public interface EagerApp {
+
+    String FORMAT = "Hello %s!";
+
+    @Cache
+    default List<String> log() {
+        return Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @Cache
+    default Formatter formatter() {
+        log().add("formatter");
+        return args -> String.format(FORMAT, args);
+    }
+
+    void formatter(Formatter formatter);
+
+    @Make(RealGreeting.class)
+    Greeting greeting();
+
+    void warmUp$();
+
+    CompletableFuture<Void> warmUp$(Executor executor);
+
+    void formatter$invalidate();
+
+    void greeting$invalidate();
+
+    EagerApp reconfigure$(Consumer<? super EagerApp> configurer);
+
+    EagerApp reconfigure$(Consumer<? super EagerApp> configurer, Consumer<Object> displaced);
+}
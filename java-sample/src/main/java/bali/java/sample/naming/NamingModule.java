@@ -8,4 +8,6 @@ public interface NamingModule extends Nameable {
     WhatsMyName<String> name1();
 
     WhatsMyName<Integer> name2();
+
+    WhatsMyName<Long> name$3();
 }
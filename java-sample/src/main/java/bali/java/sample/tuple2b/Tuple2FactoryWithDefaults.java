@@ -15,6 +15,7 @@
  */
 package bali.java.sample.tuple2b;
 
+import bali.Cache;
 import bali.Lookup;
 import bali.Make;
 import bali.Module;
@@ -32,6 +33,7 @@ public interface Tuple2FactoryWithDefaults<T1, T2> extends Tuple2Factory$ {
     @Make(ImmutableTuple2.class)
     Tuple2<T1, T2> tuple();
 
+    @Cache
     @Make(ImmutableTuple2.class)
     <T1> Tuple2<T1, T2> tupleFromT1(T1 t1);
 
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java.sample.async
+
+import org.scalatest.matchers.should.Matchers._
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.util.concurrent.CompletionException
+
+class AsyncAppSpec extends AnyWordSpec {
+
+  "The async app" should {
+    val app = AsyncApp$.new$
+    import app._
+
+    "make its connections on its executor" in {
+      val c = uncachedConnection.join()
+      c.url shouldBe "jdbc:h2:mem:"
+      c.thread shouldBe "async-app"
+      uncachedConnection.join() shouldNot be theSameInstanceAs c
+    }
+
+    "refresh a value ahead on its executor" in {
+      refreshingThread shouldBe Thread.currentThread.getName
+      Thread.sleep(1100)
+      refreshingThread shouldBe Thread.currentThread.getName
+      val deadline = System.currentTimeMillis + 5000
+      while (refreshingThread != "async-app" && System.currentTimeMillis < deadline) {
+        Thread.sleep(10)
+      }
+      refreshingThread shouldBe "async-app"
+    }
+
+    "cache a successful connection" in {
+      connection shouldBe theSameInstanceAs(connection)
+      connection.join() shouldBe theSameInstanceAs(connection.join())
+    }
+
+    "evict a failed connection" in {
+      val app = AsyncApp$.new$
+      Connection.failures.set(1)
+      val failed = app.connection
+      val e = the[CompletionException] thrownBy failed.join()
+      e.getCause shouldBe an[IllegalStateException]
+      val deadline = System.currentTimeMillis + 5000
+      while ((app.connection eq failed) && System.currentTimeMillis < deadline) {
+        Thread.sleep(10)
+      }
+      app.connection shouldNot be theSameInstanceAs failed
+      app.connection.join().thread shouldBe "async-app"
+    }
+
+    "evict a connection which has failed before it got cached" in {
+      val app = DirectAsyncApp$.new$
+      Connection.failures.set(1)
+      val failed = app.connection
+      val e = the[CompletionException] thrownBy failed.join()
+      e.getCause shouldBe an[IllegalStateException]
+      val deadline = System.currentTimeMillis + 5000
+      while ((app.connection eq failed) && System.currentTimeMillis < deadline) {
+        Thread.sleep(10)
+      }
+      app.connection shouldNot be theSameInstanceAs failed
+      app.connection.join().thread shouldBe Thread.currentThread.getName
+    }
+  }
+}
@@ -3,11 +3,34 @@ package bali.java.sample.cache
 import org.scalatest.matchers.should.Matchers._
 import org.scalatest.wordspec.AnyWordSpec
 
+import java.io.IOException
+import java.lang.ref.WeakReference
 import java.util.Date
+import java.util.concurrent.{CompletableFuture, CountDownLatch, Executor, Executors}
 import scala.util.chaining.scalaUtilChainingOps
 
 class CacheModuleSpec extends AnyWordSpec {
 
+  // Advances the clock of the time-to-live and backoff caches.
+  private def elapse(millis: Long): Unit = CacheModule.nanoTime.addAndGet(millis * 1000000)
+
+  // Waits for a background task to change the outcome of the given condition.
+  private def await(condition: => Boolean): Unit = {
+    val deadline = System.currentTimeMillis + 5000
+    while (!condition && System.currentTimeMillis < deadline) {
+      Thread.sleep(10)
+    }
+  }
+
+  // Requests garbage collections until the referent of the given reference has been collected.
+  private def awaitCollection(reference: WeakReference[_ <: AnyRef]): Unit = {
+    await {
+      System.gc()
+      null == reference.get
+    }
+    reference.get shouldBe null
+  }
+
   "The cache module" should {
     val module = CacheModule$.new$
     import module._
@@ -37,6 +60,15 @@ class CacheModuleSpec extends AnyWordSpec {
       threadSafe shouldBe theSameInstanceAs(date)
     }
 
+    "cache the time (thread-safe) without locking the module" in {
+      val module = CacheModule$.new$
+      module.synchronized {
+        val thread = new Thread(() => module.threadSafe).tap(_.start())
+        thread.join(10000)
+        thread.isAlive shouldBe false
+      }
+    }
+
     "cache the time (thread-local)" in {
       var a1: Date = null
       var a2: Date = null
@@ -85,10 +117,64 @@ class CacheModuleSpec extends AnyWordSpec {
       Seq(a1, b1, c1, d1).map(System.identityHashCode).toSet.size shouldBe 4
     }
 
+    "cache the time (lock-free)" in {
+      val date = new Date
+
+      val dates = new Array[Date](4)
+      dates.indices
+        .map(i => new Thread(() => dates(i) = lockFree).tap(_.start()))
+        .foreach(_.join())
+      dates.map(System.identityHashCode).toSet.size shouldBe 1
+      lockFree shouldBe theSameInstanceAs(dates(0))
+
+      lockFree shouldNot be theSameInstanceAs date
+      lockFree(date)
+      lockFree shouldBe theSameInstanceAs(date)
+    }
+
+    "cache the random number (lock-free)" in {
+      val ints = new Array[Int](4)
+      ints.indices
+        .map(i => new Thread(() => ints(i) = randomIntLockFree).tap(_.start()))
+        .foreach(_.join())
+      ints.toSet.size shouldBe 1
+      randomIntLockFree shouldBe ints(0)
+      randomIntLockFree(0)
+      randomIntLockFree shouldBe 0
+      randomIntLockFree(-1)
+      randomIntLockFree shouldBe -1
+
+      randomDoubleLockFree shouldBe randomDoubleLockFree
+    }
+
     "cache the time (fixed)" in {
       fixed shouldBe theSameInstanceAs(fixed)
     }
 
+    "release the thread-local time" in {
+      val a = threadLocal
+      threadLocal shouldBe theSameInstanceAs(a)
+      releaseThreadLocals$()
+      threadLocal shouldNot be theSameInstanceAs a
+
+      val executor = Executors.newSingleThreadExecutor
+      try {
+        def dateOn(executor: Executor) = {
+          var date: Date = null
+          CompletableFuture.runAsync(() => date = threadLocal, executor).join()
+          date
+        }
+
+        val b = dateOn(executor)
+        dateOn(executor) shouldBe theSameInstanceAs(b)
+        val releasing = releasingThreadLocals$(executor)
+        dateOn(releasing) shouldBe theSameInstanceAs(b)
+        dateOn(releasing) shouldNot be theSameInstanceAs b
+      } finally {
+        executor.shutdown()
+      }
+    }
+
     "cache the random integer (thread-local)" in {
       var a1: Int = 0
       var a2: Int = 0
@@ -112,5 +198,419 @@ class CacheModuleSpec extends AnyWordSpec {
 
       a1 should not equal b1
     }
+
+    "set the random integer (thread-local)" in {
+      var a: Int = 0
+      var b: Int = 0
+
+      new Thread(() => {
+        randomInt(1)
+        a = randomInt
+        randomInt(2)
+        b = randomInt
+      }).tap(_.start()).join()
+
+      a shouldEqual 1
+      b shouldEqual 2
+    }
+
+    "cache the random double (not thread-safe)" in {
+      randomDouble shouldEqual randomDouble
+    }
+
+    "cache the random long (thread-safe)" in {
+      val longs = new Array[Long](4)
+      longs.indices
+        .map(i => new Thread(() => longs(i) = randomLong).tap(_.start()))
+        .foreach(_.join())
+      longs.toSet shouldBe Set(randomLong)
+
+      randomLong(42L)
+      randomLong shouldEqual 42L
+    }
+
+    "never tear the random long when it's set after the first read (thread-safe)" in {
+      randomLong(0L)
+      randomLong shouldEqual 0L
+      val writer = new Thread(() => (1 to 100000).foreach(i => randomLong(if (i % 2 == 0) 0L else -1L))).tap(_.start())
+      while (writer.isAlive) {
+        Set(0L, -1L) should contain(randomLong)
+      }
+      writer.join()
+      randomLong shouldEqual 0L
+    }
+
+    "cache the time (soft)" in {
+      val date = new Date
+
+      soft shouldNot be theSameInstanceAs date
+      soft shouldBe theSameInstanceAs(soft)
+      soft(date)
+      soft shouldBe theSameInstanceAs(date)
+    }
+
+    "cache the time (weak) until it's cleared" in {
+      var date = weak
+      weak shouldBe theSameInstanceAs(date)
+
+      val reference = new WeakReference(date)
+      date = null
+      awaitCollection(reference)
+      // The cached value has been cleared, so this must be a new instance:
+      weak shouldNot be(null)
+    }
+
+    "not cache null (weak)" in {
+      val count = CacheModule.nullCount.get
+      nullWeak shouldBe null
+      nullWeak shouldBe null
+      CacheModule.nullCount.get shouldBe count + 2
+    }
+
+    "cache the time (time-to-live)" in {
+      val a = ttl
+      ttl shouldBe theSameInstanceAs(a)
+      elapse(99)
+      ttl shouldBe theSameInstanceAs(a)
+      elapse(1)
+      val b = ttl
+      b shouldNot be theSameInstanceAs a
+      ttl shouldBe theSameInstanceAs(b)
+
+      val date = new Date
+      ttl(date)
+      ttl shouldBe theSameInstanceAs(date)
+    }
+
+    "cache the time (time-to-live) and refresh it ahead" in {
+      val a = refreshAhead
+      refreshAhead shouldBe theSameInstanceAs(a)
+      elapse(200)
+      refreshAhead shouldBe theSameInstanceAs(a)
+      await(refreshAhead ne a)
+      refreshAhead shouldNot be theSameInstanceAs a
+    }
+
+    "reload the time synchronously once it has been stale for another time-to-live" in {
+      val a = refreshAhead
+      elapse(400)
+      refreshAhead shouldNot be theSameInstanceAs a
+    }
+
+    "suppress the last failure to refresh the time ahead by the failure to reload it synchronously" in {
+      val a = failingRefreshAhead
+      elapse(100)
+      failingRefreshAhead shouldBe theSameInstanceAs(a)
+      await(1 < CacheModule.refreshFailureCount.get)
+      elapse(100)
+      val e = the[IOException] thrownBy failingRefreshAhead
+      e.getSuppressed.toSeq should have size 1
+      e.getSuppressed()(0) shouldBe an[IOException]
+    }
+
+    "cache the random integer (time-to-live)" in {
+      val a = ttlInt
+      ttlInt shouldBe a
+      elapse(100)
+      ttlInt shouldNot be(a)
+    }
+
+    "pool the string builder" in {
+      val a = pooled$apply[java.lang.StringBuilder](identity(_))
+      pooled$apply[java.lang.StringBuilder](identity(_)) shouldBe theSameInstanceAs(a)
+      pooled shouldNot be theSameInstanceAs a
+
+      var c: java.lang.StringBuilder = null
+      val thread = pooled$apply[Thread] { x =>
+        pooled$apply[Thread] { y =>
+          x shouldBe theSameInstanceAs(a)
+          y shouldNot be theSameInstanceAs x
+          pooled shouldNot (be theSameInstanceAs x or be theSameInstanceAs y)
+          val thread = new Thread(() => c = pooled$apply[java.lang.StringBuilder](identity(_))).tap(_.start())
+          thread.join(100)
+          thread.isAlive shouldBe true
+          thread
+        }
+      }
+      thread.join()
+      c shouldNot be(null)
+    }
+
+    "cache the string builder (striped)" in {
+      val a = striped
+      striped shouldBe theSameInstanceAs(a)
+
+      var b: java.lang.StringBuilder = null
+      new Thread(() => b = striped).tap(_.start()).join()
+      b shouldNot be(null)
+      b shouldNot be theSameInstanceAs a
+
+      val c = new java.lang.StringBuilder
+      striped(c)
+      striped shouldBe theSameInstanceAs(c)
+      new Thread(() => b = striped).tap(_.start()).join()
+      b shouldNot be theSameInstanceAs c
+    }
+
+    "never share the string builder between live threads (striped)" in {
+      val builders = new Array[java.lang.StringBuilder](8)
+      val latch = new CountDownLatch(builders.length)
+      builders.indices
+        .map(i => new Thread(() => {
+          builders(i) = striped
+          latch.countDown()
+          latch.await()
+        }).tap(_.start()))
+        .foreach(_.join())
+      builders.map(System.identityHashCode).toSet.size shouldBe builders.length
+    }
+
+    "have a shared instance" in {
+      CacheModule$.shared$ shouldBe theSameInstanceAs(CacheModule$.shared$)
+      CacheModule$.new$ shouldNot be theSameInstanceAs CacheModule$.new$
+    }
+
+    "freeze the shared caches" in {
+      val module = CacheModule$.new$
+      val frozen = module.freeze$
+      frozen.freeze$ shouldBe theSameInstanceAs(frozen)
+      frozen.threadSafe shouldBe theSameInstanceAs(module.threadSafe)
+      frozen.lockFree shouldBe theSameInstanceAs(module.lockFree)
+      frozen.fixed shouldBe theSameInstanceAs(module.fixed)
+      frozen.randomLong shouldBe module.randomLong
+      an[UnsupportedOperationException] shouldBe thrownBy(frozen.randomLong(0L))
+      frozen.disabled shouldNot be theSameInstanceAs frozen.disabled
+      an[UnsupportedOperationException] shouldBe thrownBy(frozen.lockFree(new Date))
+      frozen.lockFree shouldBe theSameInstanceAs(module.lockFree)
+      frozen.keyed(1) shouldBe theSameInstanceAs(module.keyed(1))
+      frozen.threadLocal shouldBe theSameInstanceAs(module.threadLocal)
+      val date = new Date
+      frozen.soft(date)
+      module.soft shouldBe theSameInstanceAs(date)
+      frozen.weak shouldBe theSameInstanceAs(module.weak)
+    }
+
+    "cache the time (static)" in {
+      constant shouldBe theSameInstanceAs(constant)
+      constant shouldBe theSameInstanceAs(CacheModule$.new$.constant)
+    }
+
+    "fail permanently after a failure to cache the time (static)" in {
+      (the[ExceptionInInitializerError] thrownBy constantFailing).getCause shouldBe an[IllegalStateException]
+      a[NoClassDefFoundError] shouldBe thrownBy(constantFailing)
+      a[NoClassDefFoundError] shouldBe thrownBy(CacheModule$.new$.constantFailing)
+      CacheModule.constantFailureCount.get shouldBe 1
+    }
+
+    "cache the time (epoch)" in {
+      val date = epoch
+      val int = epochInt
+      epoch shouldBe theSameInstanceAs(date)
+      epochInt shouldBe int
+      advanceEpoch$()
+      epoch shouldNot be theSameInstanceAs date
+      epoch shouldBe theSameInstanceAs(epoch)
+      val other = new Date
+      epoch(other)
+      epoch shouldBe theSameInstanceAs(other)
+      advanceEpoch$()
+      epoch shouldNot be theSameInstanceAs other
+    }
+
+    "cache null (epoch)" in {
+      val count = CacheModule.nullCount.get
+      nullEpoch shouldBe null
+      nullEpoch shouldBe null
+      CacheModule.nullCount.get shouldBe count + 1
+      advanceEpoch$()
+      nullEpoch shouldBe null
+      CacheModule.nullCount.get shouldBe count + 2
+    }
+
+    "cache the time (scoped)" in {
+      scoped shouldNot be theSameInstanceAs scoped
+      an[IllegalStateException] shouldBe thrownBy(scoped(new Date))
+
+      val dates = new Array[Date](2)
+      dates.indices.foreach { i =>
+        runScoped$(() => {
+          dates(i) = scoped
+          scoped shouldBe theSameInstanceAs(dates(i))
+          val date = new Date
+          runScoped$(() => scoped shouldNot be theSameInstanceAs dates(i))
+          scoped shouldBe theSameInstanceAs(dates(i))
+          scoped(date)
+          scoped shouldBe theSameInstanceAs(date)
+        })
+      }
+      dates(0) shouldNot be theSameInstanceAs dates(1)
+    }
+
+    "cache the time by key" in {
+      keyed(1) shouldBe theSameInstanceAs(keyed(1))
+      keyed(1).getTime shouldBe 1
+      keyed(2) shouldNot be theSameInstanceAs keyed(1)
+      keyedNotThreadSafe(1) shouldBe theSameInstanceAs(keyedNotThreadSafe(1))
+      keyedNotThreadSafe(1) shouldNot be theSameInstanceAs keyed(1)
+
+      val dates = new Array[Date](10)
+      dates.indices.map(i => new Thread(() => dates(i) = keyed(3)).tap(_.start())).foreach(_.join())
+      dates.foreach(_ shouldBe theSameInstanceAs(dates(0)))
+    }
+
+    "cache the time by multiple keys" in {
+      keyedMulti(1, 2) shouldBe theSameInstanceAs(keyedMulti(1, 2))
+      keyedMulti(1, 2).getTime shouldBe 3
+      keyedMulti(2, 1) shouldNot be theSameInstanceAs keyedMulti(1, 2)
+      keyedMulti(Double.NaN, 0) shouldBe theSameInstanceAs(keyedMulti(Double.NaN, 0))
+    }
+
+    "fail a recursive call with the same key instead of waiting forever" in {
+      the[IllegalStateException] thrownBy keyedRecursive(1) should have message "Recursive call with the same key."
+      the[IllegalStateException] thrownBy keyedRecursive(1) should have message "Recursive call with the same key."
+    }
+
+    "cache the time by key with a maximum size" in {
+      val hot = bounded(0)
+      for (_ <- 1 to 10) {
+        bounded(0) shouldBe theSameInstanceAs(hot)
+      }
+      for (i <- 1 to 200) {
+        bounded(i).getTime shouldBe i
+      }
+      bounded(0) shouldBe theSameInstanceAs(hot)
+
+      val stats = bounded$cacheStats
+      stats.get("hits") shouldBe 11
+      stats.get("misses") shouldBe 201
+      stats.get("evictions") shouldBe 101
+      stats.get("size") shouldBe 100
+    }
+
+    "cache the time by a nullable key with a maximum size (not thread-safe)" in {
+      val count = CacheModule.nullCount.get
+      boundedNull(null) shouldBe null
+      boundedNull(null) shouldBe null
+      val date = boundedNull("a")
+      date shouldNot be(null)
+      boundedNull("a") shouldBe theSameInstanceAs(date)
+      CacheModule.nullCount.get shouldBe count + 2
+    }
+
+    "cache the time by key unless it fails" in {
+      val date = new Date
+      CacheModule.failureCount.set(0)
+      an[IOException] shouldBe thrownBy(keyedFailing(date))
+      val clone = keyedFailing(date)
+      clone shouldBe date
+      keyedFailing(date) shouldBe theSameInstanceAs(clone)
+      CacheModule.failureCount.get shouldBe 2
+    }
+
+    "remember a failure and back off exponentially" in {
+      val e1 = the[IOException] thrownBy backoff
+      val b1 = the[IllegalStateException] thrownBy backoff
+      b1.getCause shouldBe theSameInstanceAs(e1)
+      (the[IllegalStateException] thrownBy backoff) shouldNot be theSameInstanceAs b1
+      CacheModule.backoffCount.get shouldBe 1
+      elapse(100)
+      val e2 = the[IOException] thrownBy backoff
+      e2 shouldNot be theSameInstanceAs e1
+      elapse(199)
+      (the[IllegalStateException] thrownBy backoff).getCause shouldBe theSameInstanceAs(e2)
+      CacheModule.backoffCount.get shouldBe 2
+      elapse(1)
+      val date = backoff
+      backoff shouldBe theSameInstanceAs(date)
+      CacheModule.backoffCount.get shouldBe 3
+    }
+
+    "cache null by key" in {
+      val count = CacheModule.nullCount.get
+      keyedNull("a", 1) shouldBe null
+      keyedNull("a", 1) shouldBe null
+      keyedNull(null, 1) shouldBe null
+      keyedNull(null, 1) shouldBe null
+      CacheModule.nullCount.get shouldBe count + 2
+    }
+
+    "cache null by a null key (thread-safe)" in {
+      val count = CacheModule.nullCount.get
+      keyedNullThreadSafe(null) shouldBe null
+      keyedNullThreadSafe(null) shouldBe null
+      val date = keyedNullThreadSafe("a")
+      date shouldNot be(null)
+      keyedNullThreadSafe("a") shouldBe theSameInstanceAs(date)
+      keyedNullThreadSafe(null) shouldBe null
+      CacheModule.nullCount.get shouldBe count + 2
+    }
+
+    "cache null" in {
+      val count = CacheModule.nullCount.get
+      for (_ <- 1 to 2) {
+        nullNotThreadSafe shouldBe null
+        nullThreadSafe shouldBe null
+        nullThreadLocal shouldBe null
+        nullLockFree shouldBe null
+      }
+      CacheModule.nullCount.get shouldBe count + 4
+
+      val date = new Date
+      nullThreadSafe(date)
+      nullThreadSafe shouldBe theSameInstanceAs(date)
+      nullThreadSafe(null)
+      nullThreadSafe shouldBe null
+      CacheModule.nullCount.get shouldBe count + 4
+    }
+
+    "cache null in a component (thread-local)" in {
+      val count = CacheModule.nullCount.get
+      nulls.nullDisabled shouldBe null
+      nulls.nullDisabled shouldBe null
+      CacheModule.nullCount.get shouldBe count + 1
+    }
+
+    "cache null in a component (lock-free)" in {
+      val count = CacheModule.nullCount.get
+      nulls.nullDisabledLockFree shouldBe null
+      nulls.nullDisabledLockFree shouldBe null
+      CacheModule.nullCount.get shouldBe count + 1
+    }
+
+    "cache the time in a component (striped)" in {
+      var a: Date = null
+      var b: Date = null
+      new Thread(() => {
+        a = stripedComponent.disabled
+        b = stripedComponent.disabled
+      }).tap(_.start()).join()
+      a shouldBe theSameInstanceAs(b)
+      stripedComponent.disabled shouldNot be theSameInstanceAs a
+    }
+
+    "publish a nullable value set after the first read to other threads (thread-safe)" in {
+      nullThreadSafe(null)
+      nullThreadSafe shouldBe null
+      val date = new Date
+      val reader = new Thread(() => while (nullThreadSafe eq null) {}).tap(_.start())
+      nullThreadSafe(date)
+      reader.join(10000)
+      reader.isAlive shouldBe false
+      nullThreadSafe shouldBe theSameInstanceAs(date)
+    }
+
+    "release a nullable value when it's invalidated (thread-safe)" in {
+      var date = new Date
+      nullThreadSafe(date)
+      nullThreadSafe shouldBe theSameInstanceAs(date)
+
+      val reference = new WeakReference(date)
+      date = null
+      nullThreadSafe$invalidate()
+      awaitCollection(reference)
+      val count = CacheModule.nullCount.get
+      nullThreadSafe shouldBe null
+      CacheModule.nullCount.get shouldBe count + 1
+    }
   }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java.sample.eager
+
+import bali.java.sample.greeting.Formatter
+import org.scalatest.matchers.should.Matchers._
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.util.concurrent.ForkJoinPool
+
+class EagerAppSpec extends AnyWordSpec {
+
+  "The eager app" should {
+    "warm up its cached dependencies" in {
+      val app = EagerApp$.new$
+      import app._
+      warmUp$()
+      log should contain only "formatter"
+      greeting.message("world") shouldBe "Hello world!"
+      log should contain only "formatter"
+    }
+
+    "warm up its cached dependencies in parallel" in {
+      val app = EagerApp$.new$
+      import app._
+      warmUp$(ForkJoinPool.commonPool).join()
+      log should contain only "formatter"
+      greeting.message("world") shouldBe "Hello world!"
+      log should contain only "formatter"
+    }
+
+    "invalidate a cached dependency and its dependents" in {
+      val app = EagerApp$.new$
+      import app._
+      val g = greeting
+      g.message("world") shouldBe "Hello world!"
+      log should contain only "formatter"
+      formatter$invalidate()
+      greeting should not be theSameInstanceAs(g)
+      greeting.message("world") shouldBe "Hello world!"
+      log should contain theSameElementsAs List("formatter", "formatter")
+    }
+
+    "invalidate a cached dependent but not its dependencies" in {
+      val app = EagerApp$.new$
+      import app._
+      val g = greeting
+      g.message("world") shouldBe "Hello world!"
+      log should contain only "formatter"
+      greeting$invalidate()
+      greeting should not be theSameInstanceAs(g)
+      greeting.message("world") shouldBe "Hello world!"
+      log should contain only "formatter"
+    }
+
+    "reconfigure a new module without changing the current one" in {
+      val app = EagerApp$.new$
+      app.greeting.message("world") shouldBe "Hello world!"
+      val formatter = new Formatter {
+        override def format(args: AnyRef*): String = String.format("Goodbye %s!", args: _*)
+      }
+      val next = app.reconfigure$(_.formatter(formatter))
+      next shouldNot be theSameInstanceAs app
+      next.greeting.message("world") shouldBe "Goodbye world!"
+      app.greeting.message("world") shouldBe "Hello world!"
+      next.log shouldBe theSameInstanceAs(app.log)
+    }
+
+    "reconfigure a new module and pass the displaced values of the current one" in {
+      val app = EagerApp$.new$
+      val log = app.log
+      val greeting = app.greeting
+      greeting.message("world") shouldBe "Hello world!"
+      val formatter = new Formatter {
+        override def format(args: AnyRef*): String = String.format("Goodbye %s!", args: _*)
+      }
+      val displaced = new java.util.ArrayList[AnyRef]
+      val next = app.reconfigure$(_.formatter(formatter), displaced.add(_))
+      displaced should contain theSameElementsAs List(app.formatter, greeting)
+      next.log shouldBe theSameInstanceAs(log)
+      next.formatter shouldBe theSameInstanceAs(formatter)
+      next.greeting shouldNot be theSameInstanceAs greeting
+      next.greeting.message("world") shouldBe "Goodbye world!"
+      app.greeting shouldBe theSameInstanceAs(greeting)
+    }
+
+    "reconfigure a new module which takes over the unchanged values of the current one" in {
+      val app = EagerApp$.new$
+      val greeting = app.greeting
+      greeting.message("world") shouldBe "Hello world!"
+      val displaced = new java.util.ArrayList[AnyRef]
+      val next = app.reconfigure$(_ => (), displaced.add(_))
+      displaced shouldBe empty
+      next.greeting shouldBe theSameInstanceAs(greeting)
+      next.log should contain only "formatter"
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java.sample.jfr
+
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import org.scalatest.matchers.should.Matchers._
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.nio.file.Files
+import scala.jdk.CollectionConverters._
+
+class JfrAppSpec extends AnyWordSpec {
+
+  "The JFR app" should {
+    "emit an event for each construction when compiled with the processor option" in {
+      // The build compiles the app with -Abali.jfr=true only on Java 11 or later:
+      assume(!System.getProperty("java.specification.version").startsWith("1."))
+      val file = Files.createTempFile("bali", ".jfr")
+      try {
+        val recording = new Recording
+        try {
+          recording.enable("bali.ComponentConstructed").withoutThreshold()
+          recording.start()
+          val app = JfrApp$.new$
+          import app._
+          outer shouldBe "outer inner"
+          outer shouldBe "outer inner"
+          uncached shouldNot be theSameInstanceAs uncached
+          recording.stop()
+          recording.dump(file)
+        } finally {
+          recording.close()
+        }
+        val events = RecordingFile
+          .readAllEvents(file)
+          .asScala
+          .filter(_.getEventType.getName == "bali.ComponentConstructed")
+          .map(e => (e.getString("methodName"), e.getString("cachingStrategy"), e.getInt("depth")))
+        events should contain theSameElementsAs List(
+          ("outer", "THREAD_SAFE", 0),
+          ("inner", "THREAD_SAFE", 1),
+          ("uncached", "DISABLED", 0),
+          ("uncached", "DISABLED", 0),
+        )
+      } finally {
+        Files.delete(file)
+      }
+    }
+  }
+}
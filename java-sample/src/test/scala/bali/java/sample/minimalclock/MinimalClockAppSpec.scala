@@ -27,5 +27,10 @@ class MinimalClockAppSpec extends AnyWordSpec {
     "not cache the time" in {
       get shouldNot be theSameInstanceAs get
     }
+
+    "be shared because it is stateless" in {
+      MinimalClockApp$.new$ shouldBe theSameInstanceAs(app)
+      MinimalClockApp$.shared$ shouldBe theSameInstanceAs(app)
+    }
   }
 }
@@ -12,6 +12,7 @@ class NamingModuleSpec extends AnyWordSpec {
       module.simple shouldBe "NamingModule$$"
       module.name1.simple shouldBe "WhatsMyName$"
       module.name2.simple shouldBe "WhatsMyName$"
+      module.name$3.simple shouldBe "WhatsMyName$"
     }
 
     "yield the expected qualified names" in {
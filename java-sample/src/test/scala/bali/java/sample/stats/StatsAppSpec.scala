@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java.sample.stats
+
+import org.scalatest.matchers.should.Matchers._
+import org.scalatest.wordspec.AnyWordSpec
+
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+import scala.jdk.CollectionConverters._
+
+class StatsAppSpec extends AnyWordSpec {
+
+  "The stats app" should {
+    "collect statistics when compiled with the processor option" in {
+      val app = StatsApp$.new$
+      import app._
+      cached shouldBe theSameInstanceAs(cached)
+      uncached shouldNot be theSameInstanceAs uncached
+      val stats = stats$.asScala.view.mapValues(_.asScala).toMap
+      stats("cached")("calls") shouldBe 2
+      stats("cached")("hits") shouldBe 1
+      stats("cached")("misses") shouldBe 1
+      stats("uncached")("calls") shouldBe 2
+      stats("uncached")("hits") shouldBe 0
+      stats("uncached")("misses") shouldBe 2
+    }
+
+    "not share its statistics with other instances, even without caching" in {
+      val a = UncachedStatsApp$.new$
+      val b = UncachedStatsApp$.new$
+      a shouldNot be theSameInstanceAs b
+      a.uncached
+      a.stats$.get("uncached").get("calls") shouldBe 1
+      b.stats$.get("uncached").get("calls") shouldBe 0
+    }
+
+    "register its statistics as an MBean" in {
+      val app = StatsApp$.new$
+      val name = new ObjectName("bali.java.sample.stats:type=StatsApp")
+      val server = ManagementFactory.getPlatformMBeanServer
+      app.registerStats$(name).getObjectName shouldBe name
+      try {
+        app.cached
+        val attributes = server.getMBeanInfo(name).getAttributes.map(_.getName).toSet
+        attributes shouldBe app.stats$.asScala.flatMap { case (method, counters) =>
+          counters.keySet.asScala.map(method + "." + _)
+        }.toSet
+        attributes should contain("cached.misses")
+        server.getAttribute(name, "cached.misses") shouldBe 1L
+      } finally {
+        server.unregisterMBean(name)
+      }
+    }
+  }
+}
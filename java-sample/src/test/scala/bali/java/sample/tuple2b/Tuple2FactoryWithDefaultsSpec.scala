@@ -36,6 +36,11 @@ class Tuple2FactoryWithDefaultsSpec extends AnyWordSpec {
       t.getT2 shouldBe "t2"
     }
 
+    "Cache the tuple with an explicit value for t1" in {
+      tupleFromT1("t1") shouldBe theSameInstanceAs(tupleFromT1("t1"))
+      tupleFromT1("t1") shouldNot be theSameInstanceAs tupleFromT1("t2")
+    }
+
     "Create a tuple with an implicit value for t1 and an explicit value for t2" in {
       val t = tupleFromT2("t2")
       t.getT1 shouldBe "t1"
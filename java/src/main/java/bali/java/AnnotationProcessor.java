@@ -28,8 +28,12 @@ import javax.lang.model.type.*;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -37,6 +41,16 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static bali.CachingStrategy.DISABLED;
+import static bali.CachingStrategy.EPOCH;
+import static bali.CachingStrategy.LOCK_FREE;
+import static bali.CachingStrategy.NOT_THREAD_SAFE;
+import static bali.CachingStrategy.POOLED;
+import static bali.CachingStrategy.SCOPED;
+import static bali.CachingStrategy.STATIC;
+import static bali.CachingStrategy.STRIPED;
+import static bali.CachingStrategy.THREAD_LOCAL;
+import static bali.CachingStrategy.THREAD_SAFE;
+import static bali.CachingStrategy.TTL;
 import static bali.java.Utils.*;
 import static java.util.Collections.unmodifiableList;
 import static javax.tools.Diagnostic.Kind.ERROR;
@@ -45,6 +59,7 @@ import static lombok.AccessLevel.PRIVATE;
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 @SupportedAnnotationTypes("bali.*")
+@SupportedOptions({Features.RELEASE_OPTION, Features.STATS_OPTION, Features.JFR_OPTION})
 public final class AnnotationProcessor extends AbstractProcessor {
 
     @Getter(lazy = true, value = PRIVATE)
@@ -65,6 +80,73 @@ public final class AnnotationProcessor extends AbstractProcessor {
     @Getter(lazy = true, value = PRIVATE)
     private final Types types = processingEnv.getTypeUtils();
 
+    @Getter(lazy = true, value = PRIVATE)
+    private final Features features = resolveFeatures();
+
+    private Features resolveFeatures() {
+        val features = new Features(resolveReleaseOption(), resolveBooleanOption(Features.STATS_OPTION), resolveBooleanOption(Features.JFR_OPTION));
+        if (features.jfrIgnored()) {
+            getMessager().printMessage(WARNING, "The option " + Features.JFR_OPTION +
+                    " needs a Java release from 11 - it is ignored.");
+        }
+        return features;
+    }
+
+    private int resolveReleaseOption() {
+        val sourceRelease = processingEnv.getSourceVersion().ordinal();
+        val option = processingEnv.getOptions().get(Features.RELEASE_OPTION);
+        if (null != option) {
+            try {
+                val release = Integer.parseInt(option.trim());
+                if (Features.MIN_RELEASE <= release && release <= sourceRelease) {
+                    return release;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            getMessager().printMessage(WARNING, "The option " + Features.RELEASE_OPTION + "=" + option +
+                    " needs to be a Java release from " + Features.MIN_RELEASE + " to " + sourceRelease + " - it is ignored.");
+        }
+        return Math.max(Features.MIN_RELEASE, sourceRelease);
+    }
+
+    private boolean resolveBooleanOption(final String name) {
+        val options = processingEnv.getOptions();
+        if (!options.containsKey(name)) {
+            return false;
+        }
+        // A plain -Aname has a null value:
+        val option = options.get(name);
+        if (null == option || option.trim().equalsIgnoreCase("true")) {
+            return true;
+        } else if (option.trim().equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            getMessager().printMessage(WARNING, "The option " + name + "=" + option +
+                    " needs to be true or false - it is ignored.");
+            return false;
+        }
+    }
+
+    // These type mirrors are not cached because the compiler may create new ones for each round, so that comparing a
+    // type mirror from a later round with one from an earlier round can fail.
+
+    private TypeMirror getCompletableFutureType() {
+        return getTypes().erasure(getElements().getTypeElement(CompletableFuture.class.getName()).asType());
+    }
+
+    private TypeMirror getExecutorType() {
+        return getElements().getTypeElement(Executor.class.getName()).asType();
+    }
+
+    private TypeMirror getConsumerType() {
+        return getTypes().erasure(getElements().getTypeElement(Consumer.class.getName()).asType());
+    }
+
+    private TypeMirror getObjectConsumerType() {
+        return getTypes().getDeclaredType(getElements().getTypeElement(Consumer.class.getName()),
+                getElements().getTypeElement(Object.class.getName()).asType());
+    }
+
     private int round;
     private List<Name> todo = new LinkedList<>();
     private boolean save;
@@ -138,6 +220,10 @@ public final class AnnotationProcessor extends AbstractProcessor {
         if (save) {
             typeVisitor.visitModuleInterface4CompanionClass(moduleInterface).accept(klass); // dito
         }
+        if (save) {
+            moduleInterface.checkReservedMethods();
+            moduleInterface.checkStaticSetters();
+        }
         if (save) {
             val baseName = getElements().getBinaryName(e);
             try {
@@ -187,7 +273,8 @@ public final class AnnotationProcessor extends AbstractProcessor {
                 .stream()
                 .filter(Utils::isMethod)
                 .map(ExecutableElement.class::cast)
-                .filter(e -> isAbstract(e) || isParameterLess(e) && cachingStrategy(e) != DISABLED)
+                .filter(e -> !isReserved(e))
+                .filter(e -> isAbstract(e) || (isParameterLess(e) || hasCachingAnnotation(e)) && cachingStrategy(e) != DISABLED)
                 .filter(e -> !isModule(element)
                         || checkMakeType(e) && checkReturnType(e) && checkParameterTypes(e)
                         || (save = false));
@@ -239,22 +326,77 @@ public final class AnnotationProcessor extends AbstractProcessor {
                         .map(TypeMirror.class::cast));
     }
 
-    private MethodVisitor methodVisitor(final ExecutableElement e) {
+    private MethodVisitor methodVisitor(final ExecutableElement e, final boolean varHandles) {
+        if (!backoff(e).isEmpty() && cachingStrategy(e) != THREAD_SAFE) {
+            warn("The backoff only applies to the THREAD_SAFE caching strategy - it is ignored.", e);
+        }
+        if (!ttl(e).isEmpty() && cachingStrategy(e) != TTL) {
+            warn("The time-to-live only applies to the TTL caching strategy - it is ignored.", e);
+        }
+        if (refreshAhead(e) && cachingStrategy(e) != TTL) {
+            warn("The refresh-ahead only applies to the TTL caching strategy - it is ignored.", e);
+        }
         switch (cachingStrategy(e)) {
             case DISABLED:
                 return new DisabledCachingVisitor();
             case NOT_THREAD_SAFE:
                 return new NotThreadSafeCachingVisitor();
             case THREAD_SAFE:
-                return new ThreadSafeCachingVisitor();
+                return threadSafeCachingVisitor(e, varHandles);
             case THREAD_LOCAL:
                 return new ThreadLocalCachingVisitor();
+            case LOCK_FREE:
+                return new LockFreeCachingVisitor(varHandles);
+            case SCOPED:
+                return new ScopedCachingVisitor();
+            case SOFT:
+                return new ReferenceCachingVisitor(SoftReference.class);
+            case WEAK:
+                return new ReferenceCachingVisitor(WeakReference.class);
+            case TTL:
+                return ttlCachingVisitor(e);
+            case POOLED:
+                return new PooledCachingVisitor(maxSize(e));
+            case STRIPED:
+                return new StripedCachingVisitor();
+            case STATIC:
+                return new StaticCachingVisitor();
+            case EPOCH:
+                return new EpochCachingVisitor();
             default:
                 error("Unknown caching strategy - caching is disabled.", e);
                 return new DisabledCachingVisitor();
         }
     }
 
+    private MethodVisitor threadSafeCachingVisitor(final ExecutableElement e, final boolean varHandles) {
+        val backoff = backoff(e);
+        if (backoff.isEmpty()) {
+            return new ThreadSafeCachingVisitor(0, varHandles);
+        }
+        val duration = parseDuration(backoff);
+        if (duration.isPresent()) {
+            return new ThreadSafeCachingVisitor(duration.get().toNanos(), varHandles);
+        } else {
+            error("Invalid backoff \"" + backoff + "\" for this cached method - it is ignored.", e);
+            return new ThreadSafeCachingVisitor(0, varHandles);
+        }
+    }
+
+    private MethodVisitor ttlCachingVisitor(final ExecutableElement e) {
+        val ttl = ttl(e);
+        val duration = parseDuration(ttl);
+        if (duration.isPresent()) {
+            return new TtlCachingVisitor(duration.get().toNanos(), refreshAhead(e));
+        } else {
+            error(ttl.isEmpty()
+                            ? "Missing time-to-live for this cached method - caching is disabled."
+                            : "Invalid time-to-live \"" + ttl + "\" for this cached method - caching is disabled.",
+                    e);
+            return new DisabledCachingVisitor();
+        }
+    }
+
     private TypeElement typeElement(TypeMirror t) {
         return (TypeElement) element(t);
     }
@@ -322,6 +464,20 @@ public final class AnnotationProcessor extends AbstractProcessor {
         @Getter(lazy = true)
         private final String localDeclaredType = local(getDeclaredType());
 
+        // A module can have a shared instance unless it's generic, where sharing would mix up cached values of
+        // different type arguments.
+        @Getter(lazy = true)
+        private final boolean shareable = !hasAbstractMethods() && getTypeParametersWithBoundsList().isEmpty();
+
+        // A module is stateless if its companion class has no instance fields.
+        // With statistics, each instrumented method has a field for its counters, which must not be shared by the
+        // module instances.
+        @Getter(lazy = true)
+        private final boolean stateless =
+                getCompanionClassMethods()
+                        .stream()
+                        .allMatch(m -> !m.isStats() && (m.isCachingDisabled() || m.getCachingStrategy() == STATIC));
+
         @Getter(lazy = true)
         private final PackageElement packageElement = packageOf(getElement());
 
@@ -367,16 +523,512 @@ public final class AnnotationProcessor extends AbstractProcessor {
         }
 
         Consumer<Output> forAllModuleMethods4CompanionClass() {
-            return out -> filteredOverridableMethods(getElement())
-                    .filter(Utils::isParameterLess)
-                    .filter(e -> cachingStrategy(e) != DISABLED)
-                    .filter(e -> !hasAnnotation(e, Lookup.class))
-                    // HC SVNT DRACONES!
-                    .map(this::newModuleMethod)
+            return out -> getCompanionClassMethods()
+                    .stream()
                     .map(m -> m.getMethodVisitor().visitMethod(m))
                     .forEach(c -> c.accept(out));
         }
 
+        @Getter(lazy = true)
+        private final List<ModuleMethod> companionClassMethods =
+                filteredOverridableMethods(getElement())
+                        // With statistics or JFR events, the companion class also overrides the abstract methods
+                        // without caching in order to instrument their constructions:
+                        .filter(e -> isParameterLess(e) || hasCachingAnnotation(e) || isInstrumentedComponent(e))
+                        .filter(e -> cachingStrategy(e) != DISABLED || isInstrumentedComponent(e))
+                        .filter(e -> !hasAnnotation(e, Lookup.class))
+                        // HC SVNT DRACONES!
+                        .map(this::newModuleMethod)
+                        .filter(m -> m.getMethodParameters().isEmpty() || !m.isCachingDisabled() || m.isStats() || m.isJfr())
+                        .collect(Collectors.toList());
+
+        private boolean isInstrumentedComponent(ExecutableElement e) {
+            return (isStats() || isJfr()) && isAbstract(e);
+        }
+
+        @Getter(lazy = true)
+        private final boolean stats = getFeatures().stats();
+
+        @Getter(lazy = true)
+        private final boolean jfr = getFeatures().jfr();
+
+        @Getter(lazy = true)
+        private final List<ModuleMethod> jfrMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(Method::isJfr)
+                        .collect(Collectors.toList());
+
+        @Getter(lazy = true)
+        private final List<ModuleMethod> statsMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(Method::isStats)
+                        .collect(Collectors.toList());
+
+        @Getter(lazy = true)
+        private final List<Name> scopedMethodNames =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(m -> !m.isCachingDisabled())
+                        .filter(m -> m.getCachingStrategy() == SCOPED)
+                        .map(Method::getMethodName)
+                        .collect(Collectors.toList());
+
+        @Getter(lazy = true)
+        private final Map<ModuleMethod, List<ModuleMethod>> warmUpSchedule = resolveWarmUpSchedule();
+
+        private Map<ModuleMethod, List<ModuleMethod>> resolveWarmUpSchedule() {
+            getElements()
+                    .getAllMembers(getElement())
+                    .stream()
+                    .filter(e -> getElement().equals(e.getEnclosingElement()))
+                    .filter(e -> hasAnnotation(e, Eager.class))
+                    .filter(e -> getCompanionClassMethods()
+                            .stream()
+                            .filter(m -> m.getMethodParameters().isEmpty())
+                            .noneMatch(m -> m.getMethodElement().equals(e)))
+                    .forEach(e -> warn("Only cached module methods without parameters can be eager - the annotation is ignored.", e));
+            val eager = getCompanionClassMethods()
+                    .stream()
+                    .filter(ModuleMethod::isEager)
+                    .filter(m -> {
+                        val strategy = m.getCachingStrategy();
+                        if (strategy == THREAD_LOCAL || strategy == SCOPED || strategy == POOLED) {
+                            if (getElement().equals(m.getMethodElement().getEnclosingElement())
+                                    && hasAnnotation(m.getMethodElement(), Eager.class)) {
+                                warn("Thread-local, scoped or pooled cached module methods cannot be eager - the annotation is ignored.",
+                                        m.getMethodElement());
+                            }
+                            return false;
+                        }
+                        return true;
+                    })
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            final Map<ModuleMethod, List<ModuleMethod>> schedule = new LinkedHashMap<>();
+            val visiting = new HashSet<ModuleMethod>();
+            eager.forEach(m -> schedule(m, eager, visiting, schedule));
+            return schedule;
+        }
+
+        // Schedules the given method after the eager methods it depends on, breaking any cycles at the back edge.
+        private void schedule(final ModuleMethod m,
+                              final Set<ModuleMethod> eager,
+                              final Set<ModuleMethod> visiting,
+                              final Map<ModuleMethod, List<ModuleMethod>> schedule) {
+            if (visiting.add(m)) {
+                val prerequisites = new LinkedHashSet<ModuleMethod>();
+                val pending = new LinkedList<ModuleMethod>(m.getDependencies());
+                for (ModuleMethod d; null != (d = pending.poll()); ) {
+                    if (d != m && prerequisites.add(d)) {
+                        pending.addAll(d.getDependencies());
+                    }
+                }
+                prerequisites.retainAll(eager);
+                prerequisites.forEach(p -> schedule(p, eager, visiting, schedule));
+                schedule.put(m, prerequisites.stream().filter(schedule::containsKey).collect(Collectors.toList()));
+            }
+        }
+
+        @Accessors(fluent = true)
+        @Getter(lazy = true)
+        private final boolean hasKeyedThreadSafeMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(m -> !m.isCachingDisabled())
+                        .filter(m -> !m.getMethodParameters().isEmpty())
+                        .anyMatch(m -> m.getCachingStrategy() == THREAD_SAFE);
+
+        @Accessors(fluent = true)
+        @Getter(lazy = true)
+        private final boolean hasNullSentinel = getCompanionClassMethods().stream().anyMatch(Method::isNullSentinel);
+
+        @Accessors(fluent = true)
+        @Getter(lazy = true)
+        private final boolean hasEpochMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(m -> !m.isCachingDisabled())
+                        .anyMatch(m -> m.getCachingStrategy() == EPOCH);
+
+        @Accessors(fluent = true)
+        @Getter(lazy = true)
+        private final boolean hasStripedMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(m -> !m.isCachingDisabled())
+                        .filter(m -> m.getMethodParameters().isEmpty())
+                        .anyMatch(m -> m.getCachingStrategy() == STRIPED);
+
+        @Accessors(fluent = true)
+        @Getter(lazy = true)
+        private final boolean hasBoundedMethods = getCompanionClassMethods().stream().anyMatch(ModuleMethod::isBounded);
+
+        @Getter(lazy = true)
+        private final List<ModuleMethod> evictingMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(ModuleMethod::isEvictingFailures)
+                        .collect(Collectors.toList());
+
+        // Maps each cached module method which can be invalidated to the cached module methods to clear, i.e. itself and
+        // all methods which depend on it, directly or transitively.
+        @Getter(lazy = true)
+        private final Map<ModuleMethod, List<ModuleMethod>> invalidationSchedule = resolveInvalidationSchedule();
+
+        private Map<ModuleMethod, List<ModuleMethod>> resolveInvalidationSchedule() {
+            // Overloaded methods share their invalidation method, so this maps their name to the first one:
+            final Map<Name, ModuleMethod> invalidated = new HashMap<>();
+            final Map<ModuleMethod, Set<ModuleMethod>> schedule = new LinkedHashMap<>();
+            getCompanionClassMethods()
+                    .stream()
+                    .filter(this::isInvalidatable)
+                    .forEach(m -> {
+                        val dependents = schedule.computeIfAbsent(
+                                invalidated.computeIfAbsent(m.getMethodName(), n -> m),
+                                k -> new LinkedHashSet<>());
+                        val visited = new HashSet<ModuleMethod>();
+                        val pending = new LinkedList<ModuleMethod>();
+                        pending.add(m);
+                        while (!pending.isEmpty()) {
+                            val d = pending.poll();
+                            if (visited.add(d)) {
+                                if (isInvalidatable(d)) {
+                                    dependents.add(d);
+                                }
+                                getCompanionClassMethods()
+                                        .stream()
+                                        .filter(c -> c.getDependencies().contains(d))
+                                        .forEach(pending::add);
+                            }
+                        }
+                    });
+            final Map<ModuleMethod, List<ModuleMethod>> result = new LinkedHashMap<>();
+            schedule.forEach((m, dependents) -> result.put(m, new ArrayList<>(dependents)));
+            return result;
+        }
+
+        private boolean isInvalidatable(ModuleMethod m) {
+            return !m.isCachingDisabled() && m.getCachingStrategy() != STATIC;
+        }
+
+        @Getter(lazy = true)
+        private final String executorArgument = resolveExecutorArgument();
+
+        private String resolveExecutorArgument() {
+            val executor = getElements()
+                    .getAllMembers(getElement())
+                    .stream()
+                    .filter(Utils::isMethod)
+                    .map(ExecutableElement.class::cast)
+                    .filter(e -> e.getSimpleName().contentEquals(EXECUTOR_METHOD_NAME))
+                    .filter(Utils::isParameterLess)
+                    .findFirst();
+            if (!executor.isPresent()) {
+                return "";
+            } else if (isAbstract(executor.get())) {
+                error("This method needs a default implementation which returns the executor for asynchronous construction - it is ignored.", executor.get());
+                return "";
+            } else if (!getTypes().isAssignable(executor.get().getReturnType(), getExecutorType())) {
+                error("This method needs to return an executor - it is ignored.", executor.get());
+                return "";
+            } else {
+                return ", " + EXECUTOR_METHOD_NAME + "()";
+            }
+        }
+
+        // Whether the module provides the current time in nanoseconds for the time-to-live and backoff caches, e.g. a
+        // fake clock for testing.
+        @Getter(lazy = true)
+        private final boolean nanoTimeMethod = resolveNanoTimeMethod();
+
+        private boolean resolveNanoTimeMethod() {
+            val nanoTime = getElements()
+                    .getAllMembers(getElement())
+                    .stream()
+                    .filter(Utils::isMethod)
+                    .map(ExecutableElement.class::cast)
+                    .filter(e -> e.getSimpleName().contentEquals(NANO_TIME_METHOD_NAME))
+                    .filter(Utils::isParameterLess)
+                    .findFirst();
+            if (!nanoTime.isPresent()) {
+                return false;
+            } else if (isAbstract(nanoTime.get())) {
+                error("This method needs a default implementation which returns the current time in nanoseconds - it is ignored.", nanoTime.get());
+                return false;
+            } else if (nanoTime.get().getReturnType().getKind() != TypeKind.LONG) {
+                error("This method needs to return a long - it is ignored.", nanoTime.get());
+                return false;
+            } else {
+                return true;
+            }
+        }
+
+        @Getter(lazy = true)
+        private final Optional<ModuleMethod> freezeMethod = resolveFreezeMethod();
+
+        private Optional<ModuleMethod> resolveFreezeMethod() {
+            if (hasAbstractMethods()) {
+                return Optional.empty();
+            }
+            val method = getElements()
+                    .getAllMembers(getElement())
+                    .stream()
+                    .filter(Utils::isMethod)
+                    .map(ExecutableElement.class::cast)
+                    .filter(e -> e.getSimpleName().contentEquals(FREEZE_METHOD_NAME))
+                    .filter(Utils::isParameterLess)
+                    .filter(Utils::isAbstract)
+                    .findFirst();
+            if (method.isPresent() && !getTypes().isAssignable(getDeclaredType(), method.get().getReturnType())) {
+                error("This method needs to return the module type - it is ignored.", method.get());
+                return Optional.empty();
+            }
+            return method.map(this::newModuleMethod);
+        }
+
+        @Getter(lazy = true)
+        private final List<ModuleMethod> reconfigureMethods = resolveReconfigureMethods();
+
+        private List<ModuleMethod> resolveReconfigureMethods() {
+            if (hasAbstractMethods()) {
+                return Collections.emptyList();
+            }
+            return getElements()
+                    .getAllMembers(getElement())
+                    .stream()
+                    .filter(Utils::isMethod)
+                    .map(ExecutableElement.class::cast)
+                    .filter(e -> e.getSimpleName().contentEquals(RECONFIGURE_METHOD_NAME))
+                    .filter(Utils::isAbstract)
+                    .filter(e -> {
+                        val parameters = e.getParameters();
+                        if ((1 == parameters.size() || 2 == parameters.size())
+                                && getTypes().isSameType(getTypes().erasure(parameters.get(0).asType()), getConsumerType())
+                                && (1 == parameters.size() || getTypes().isAssignable(getObjectConsumerType(), parameters.get(1).asType()))
+                                && getTypes().isAssignable(getDeclaredType(), e.getReturnType())) {
+                            return true;
+                        }
+                        error("This method needs to accept a consumer of the module type, optionally followed by a consumer of objects for the displaced values, and return the module type - it is ignored.",
+                                e);
+                        return false;
+                    })
+                    .map(this::newModuleMethod)
+                    .collect(Collectors.toList());
+        }
+
+        // The cached methods whose values a reconfigured module can take over from this module: Their cache is shared
+        // by all threads and does not expire.
+        @Getter(lazy = true)
+        private final List<ModuleMethod> transferableMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(m -> !m.isCachingDisabled())
+                        .filter(m -> m.getMethodParameters().isEmpty())
+                        .filter(m -> {
+                            switch (m.getCachingStrategy()) {
+                                case NOT_THREAD_SAFE:
+                                case THREAD_SAFE:
+                                case LOCK_FREE:
+                                    return true;
+                                default:
+                                    return false;
+                            }
+                        })
+                        .collect(Collectors.toList());
+
+        @Getter(lazy = true)
+        private final Optional<ModuleMethod> statsMethod = reservedMethod(STATS_METHOD_NAME, 0);
+
+        @Getter(lazy = true)
+        private final Optional<ModuleMethod> registerStatsMethod = reservedMethod(REGISTER_STATS_METHOD_NAME, 1);
+
+        private Optional<ModuleMethod> reservedMethod(String name, int parameters) {
+            return getElements()
+                    .getAllMembers(getElement())
+                    .stream()
+                    .filter(Utils::isMethod)
+                    .map(ExecutableElement.class::cast)
+                    .filter(e -> e.getSimpleName().contentEquals(name))
+                    .filter(e -> parameters == e.getParameters().size())
+                    .filter(Utils::isAbstract)
+                    .findFirst()
+                    .map(this::newModuleMethod);
+        }
+
+        // Reports an error for each method which collides with a method that the companion interface or class generates,
+        // and for each abstract reserved method which the companion class doesn't implement because the module doesn't
+        // use its feature.
+        // Any other method may contain a '$' in its name.
+        void checkReservedMethods() {
+            getElements()
+                    .getAllMembers(getElement())
+                    .stream()
+                    .filter(Utils::isMethod)
+                    .map(ExecutableElement.class::cast)
+                    .filter(e -> !isStatic(e))
+                    .forEach(e -> {
+                        if (isFactoryMethod(e)) {
+                            error("The companion interface has a static method with the same signature - rename this method.", e);
+                        } else if (!isReserved(e)) {
+                            return;
+                        } else if (!isAbstract(e)) {
+                            if (isGeneratedReservedMethod(e)) {
+                                error("The companion class implements a method with the same signature, which would override this method - rename this method.", e);
+                            }
+                        } else if (!hasAbstractMethods() && !isImplementedReservedMethod(e)) {
+                            error("The companion class cannot implement this reserved method because this module doesn't use its feature or its signature doesn't match - remove this method.", e);
+                        }
+                    });
+        }
+
+        private boolean isFactoryMethod(ExecutableElement e) {
+            val name = e.getSimpleName();
+            return !hasAbstractMethods()
+                    && e.getParameters().isEmpty()
+                    && (name.contentEquals(NEW_METHOD_NAME) || isShareable() && name.contentEquals(SHARED_METHOD_NAME));
+        }
+
+        // The executor, nano time, freeze, reconfigure and register stats methods only get generated if they are
+        // abstract.
+        private boolean isGeneratedReservedMethod(ExecutableElement e) {
+            switch (e.getSimpleName().toString()) {
+                case EXECUTOR_METHOD_NAME:
+                case NANO_TIME_METHOD_NAME:
+                case FREEZE_METHOD_NAME:
+                case RECONFIGURE_METHOD_NAME:
+                case REGISTER_STATS_METHOD_NAME:
+                    return false;
+                case STATS_METHOD_NAME:
+                    return e.getParameters().isEmpty() && isStats();
+                default:
+                    return isImplementedReservedMethod(e);
+            }
+        }
+
+        // Reports an error for each abstract setter of a method with static caching because the companion class doesn't
+        // implement it: The cached value is shared by all module instances, so no instance could overwrite it.
+        void checkStaticSetters() {
+            val setterNames = getCompanionClassMethods()
+                    .stream()
+                    .filter(m -> !m.isCachingDisabled())
+                    .filter(m -> m.getCachingStrategy() == STATIC)
+                    .map(m -> setterName(m.getMethodElement()))
+                    .collect(Collectors.toSet());
+            getElements()
+                    .getAllMembers(getElement())
+                    .stream()
+                    .filter(Utils::isMethod)
+                    .map(ExecutableElement.class::cast)
+                    .filter(Utils::isAbstract)
+                    .filter(e -> !hasNonVoidReturnType(e) && 1 == e.getParameters().size())
+                    .filter(e -> setterNames.contains(e.getSimpleName().toString()))
+                    .forEach(e -> error("The STATIC caching strategy does not support setters - remove this method or change the caching strategy.", e));
+        }
+
+        // The freeze and reconfigure methods report their own errors if their signature doesn't match.
+        private boolean isImplementedReservedMethod(ExecutableElement e) {
+            val name = e.getSimpleName().toString();
+            val parameters = e.getParameters().size();
+            switch (name) {
+                case ADVANCE_EPOCH_METHOD_NAME:
+                    return 0 == parameters && hasEpochMethods();
+                case CALL_SCOPED_METHOD_NAME:
+                case RUN_SCOPED_METHOD_NAME:
+                    return 1 == parameters && !getScopedMethodNames().isEmpty();
+                case EXECUTOR_METHOD_NAME:
+                    getExecutorArgument();
+                    return true;
+                case NANO_TIME_METHOD_NAME:
+                    isNanoTimeMethod();
+                    return true;
+                case FREEZE_METHOD_NAME:
+                    return isParameterLess(e);
+                case RECONFIGURE_METHOD_NAME:
+                    return true;
+                case REGISTER_STATS_METHOD_NAME:
+                    return 1 == parameters;
+                case RELEASE_THREAD_LOCALS_METHOD_NAME:
+                    return 0 == parameters && !getThreadLocalMethods().isEmpty();
+                case RELEASING_THREAD_LOCALS_METHOD_NAME:
+                    return 1 == parameters && !getThreadLocalMethods().isEmpty();
+                case STATS_METHOD_NAME:
+                    return 0 == parameters;
+                case WARM_UP_METHOD_NAME:
+                    return parameters <= 1 && !getWarmUpSchedule().isEmpty();
+                default:
+                    val prefix = reservedMethodPrefix(e).orElse("");
+                    if (name.endsWith(INVALIDATE_METHOD_SUFFIX)) {
+                        return 0 == parameters && getInvalidationSchedule()
+                                .keySet()
+                                .stream()
+                                .anyMatch(m -> m.getMethodName().contentEquals(prefix));
+                    } else if (name.endsWith(CACHE_STATS_METHOD_SUFFIX)) {
+                        return 0 == parameters && getCompanionClassMethods()
+                                .stream()
+                                .filter(ModuleMethod::isBounded)
+                                .anyMatch(m -> m.getMethodName().contentEquals(prefix));
+                    } else {
+                        return 1 == parameters && getCompanionClassMethods()
+                                .stream()
+                                .filter(m -> m.getMethodVisitor() instanceof PooledCachingVisitor)
+                                .anyMatch(m -> m.getMethodName().contentEquals(prefix));
+                    }
+            }
+        }
+
+        // The cached methods which can be frozen into a final field: Their cache is shared by all threads and does not
+        // expire, so unlike e.g. a soft or weak reference, it never gets cleared by the garbage collector.
+        @Getter(lazy = true)
+        private final List<ModuleMethod> frozenMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(m -> !m.isCachingDisabled())
+                        .filter(m -> m.getMethodParameters().isEmpty())
+                        .filter(m -> !m.isThrowingCheckedExceptions())
+                        .filter(m -> {
+                            switch (m.getCachingStrategy()) {
+                                case NOT_THREAD_SAFE:
+                                case THREAD_SAFE:
+                                case LOCK_FREE:
+                                    return true;
+                                default:
+                                    return false;
+                            }
+                        })
+                        .collect(Collectors.toList());
+
+        // The methods which the frozen module delegates to the original module: The other companion class methods and
+        // the abstract methods which only the companion class implements, e.g. setters and reserved methods.
+        @Getter(lazy = true)
+        private final List<ModuleMethod> delegatedMethods = resolveDelegatedMethods();
+
+        private List<ModuleMethod> resolveDelegatedMethods() {
+            val frozen = getFrozenMethods();
+            val freeze = getFreezeMethod().map(ModuleMethod::getMethodElement);
+            return Stream
+                    .concat(
+                            getCompanionClassMethods().stream().filter(m -> !frozen.contains(m)),
+                            getElements()
+                                    .getAllMembers(getElement())
+                                    .stream()
+                                    .filter(Utils::isMethod)
+                                    .map(ExecutableElement.class::cast)
+                                    .filter(Utils::isAbstract)
+                                    .filter(e -> isReserved(e) || !hasNonVoidReturnType(e))
+                                    .filter(e -> !freeze.filter(e::equals).isPresent())
+                                    .map(this::newModuleMethod))
+                    .collect(Collectors.toList());
+        }
+
+        @Getter(lazy = true)
+        private final List<ModuleMethod> threadLocalMethods =
+                getCompanionClassMethods()
+                        .stream()
+                        .filter(m -> !m.isCachingDisabled())
+                        .filter(m -> m.getCachingStrategy() == THREAD_LOCAL)
+                        .collect(Collectors.toList());
+
         private String local(Object o) {
             return local(o.toString());
         }
@@ -386,28 +1038,178 @@ public final class AnnotationProcessor extends AbstractProcessor {
             return s.startsWith(prefix) ? s.substring(prefix.length()) : s;
         }
 
+        @Getter(PRIVATE)
+        private final Map<ExecutableElement, ModuleMethod> moduleMethods = new HashMap<>();
+
         ModuleMethod newModuleMethod(ExecutableElement e) {
-            return new ModuleMethod() {
+            return getModuleMethods().computeIfAbsent(e, ee -> new ModuleMethod() {
 
                 @Override
                 ExecutableElement getMethodElement() {
-                    return e;
+                    return ee;
                 }
-            };
+            });
         }
 
         abstract class ModuleMethod extends Method {
 
             @Override
             String resolveDependencyCall() {
-                return getCompanionInterfaceRef() + "." + getMethodName() + "()";
+                val call = isJfr()
+                        ? "this." + getMethodName() + "$construct(" + getMethodParametersWithoutTypesList() + ")"
+                        : getConstructionCall();
+                val measured = isStats()
+                        ? "this." + getStatsFieldName() + ".constructed(this." + getStatsFieldName() + ".constructing(), " + call + ")"
+                        : call;
+                return isEvictingFailures() ? getMethodName() + "$evicting(" + measured + ")" : measured;
+            }
+
+            // The STATIC caching strategy builds its value in a new module instance, which would lose the statistics.
+            @Override
+            boolean resolveStats() {
+                return getFeatures().stats() && (isCachingDisabled() || getCachingStrategy() != STATIC);
+            }
+
+            @Override
+            boolean resolveJfr() {
+                return getFeatures().jfr();
+            }
+
+            @Getter(lazy = true)
+            private final String constructionCall =
+                    getCompanionInterfaceRef() + "." + getMethodName() + "(" + getMethodParametersWithoutTypesList() + ")";
+
+            @Getter(lazy = true)
+            private final String constructionStrategyName = isCachingDisabled() ? DISABLED.name() : getCachingStrategy().name();
+
+            @Override
+            String resolveStatsFieldName() {
+                val index = getStatsOverloads().indexOf(this);
+                return super.resolveStatsFieldName() + (0 < index ? index : "");
+            }
+
+            // The key of the statistics of this method, which includes the erased parameter types if it's overloaded.
+            @Getter(lazy = true)
+            private final String statsKey = 1 < getStatsOverloads().size()
+                    ? mkString(getMethodParameters().stream().map(p -> getTypes().erasure(p.asType())),
+                    getMethodName() + "(", ", ", ")")
+                    : getMethodName().toString();
+
+            @Getter(lazy = true, value = PRIVATE)
+            private final List<ModuleMethod> statsOverloads =
+                    getStatsMethods()
+                            .stream()
+                            .filter(m -> m.getMethodName().equals(getMethodName()))
+                            .collect(Collectors.toList());
+
+            @Getter(lazy = true)
+            private final boolean async =
+                    isAbstract(getMethodElement()) && getTypes().isSameType(getTypes().erasure(getMethodReturnType()), getCompletableFutureType());
+
+            @Getter(lazy = true)
+            private final boolean evictingFailures = resolveEvictingFailures();
+
+            private boolean resolveEvictingFailures() {
+                if (!isAsync() || isCachingDisabled()) {
+                    return false;
+                }
+                // The eviction relies on the lock which the getter holds while caching the future, so LOCK_FREE
+                // is not supported:
+                switch (getCachingStrategy()) {
+                    case THREAD_SAFE:
+                    case SOFT:
+                    case WEAK:
+                        return getMethodParameters().isEmpty();
+                    default:
+                        warn("Failed futures are only evicted by the THREAD_SAFE, SOFT or WEAK caching strategies for methods without parameters.",
+                                getMethodElement());
+                        return false;
+                }
+            }
+
+            @Getter(lazy = true)
+            private final String executorArgument = ModuleInterface.this.getExecutorArgument();
+
+            // The type of the component to make, which is the type argument of the returned future for asynchronous
+            // construction.
+            @Getter(lazy = true)
+            private final TypeMirror componentType = resolveComponentType();
+
+            private TypeMirror resolveComponentType() {
+                if (isAsync()) {
+                    val args = ((DeclaredType) getMethodReturnType()).getTypeArguments();
+                    if (1 == args.size() && args.get(0).getKind() == TypeKind.DECLARED) {
+                        return args.get(0);
+                    }
+                    error("The type argument of the returned future needs to be a class or interface type.", getMethodElement());
+                }
+                return getMethodReturnType();
             }
 
             @Override
             boolean resolveCachingDisabled() {
-                return getCachingStrategy() == DISABLED || !getMethodParameters().isEmpty();
+                if (getCachingStrategy() == DISABLED) {
+                    return true;
+                } else if (getMethodParameters().isEmpty()) {
+                    return getCachingStrategy() == STATIC && !checkStatic();
+                } else if (!hasCachingAnnotation(getMethodElement())) {
+                    // Methods with parameters need to opt in to keyed caching:
+                    return true;
+                } else if (getCachingStrategy() == NOT_THREAD_SAFE || getCachingStrategy() == THREAD_SAFE) {
+                    return false;
+                } else {
+                    warn("The " + getCachingStrategy() + " caching strategy is not supported for methods with parameters - caching is disabled.",
+                            getMethodElement());
+                    return true;
+                }
+            }
+
+            private boolean checkStatic() {
+                final String reason;
+                if (!getTypeParametersWithBoundsList().isEmpty()) {
+                    reason = "generic module interfaces";
+                } else if (hasAbstractMethods()) {
+                    reason = "module interfaces with abstract lookup methods";
+                } else if (!getMethodTypeParametersWithBoundsList().isEmpty()) {
+                    reason = "generic methods";
+                } else if (isThrowingCheckedExceptions()) {
+                    reason = "methods which throw checked exceptions";
+                } else {
+                    return true;
+                }
+                error("Static caching is not supported for " + reason + " - caching is disabled.", getMethodElement());
+                return false;
+            }
+
+            @Getter(lazy = true)
+            private final String companionClassName = getSimpleName() + "$$";
+
+            @Override
+            MethodVisitor resolveMethodVisitor() {
+                if (isCachingDisabled()) {
+                    return super.resolveMethodVisitor();
+                }
+                val maxSize = maxSize(getMethodElement());
+                if (maxSize < 0) {
+                    error("The maximum size must not be negative - caching is disabled.", getMethodElement());
+                    return new DisabledCachingVisitor();
+                } else if (getMethodParameters().isEmpty()) {
+                    if (0 < maxSize && getCachingStrategy() != POOLED && hasCachingAnnotation(getMethodElement())) {
+                        warn("The maximum size only applies to methods with parameters - it is ignored.", getMethodElement());
+                    }
+                    return super.resolveMethodVisitor();
+                } else {
+                    if (!backoff(getMethodElement()).isEmpty() && getCachingStrategy() == THREAD_SAFE) {
+                        warn("The backoff only applies to methods without parameters - it is ignored.", getMethodElement());
+                    }
+                    return new KeyedCachingVisitor(getCachingStrategy() == THREAD_SAFE, maxSize);
+                }
             }
 
+            @Getter(lazy = true)
+            private final boolean bounded =
+                    !isCachingDisabled() && !getMethodParameters().isEmpty() && 0 < maxSize(getMethodElement());
+
             @Getter(lazy = true)
             private final Name localMakeElementName =
                     getMakeElementPackage().equals(getPackageElement())
@@ -443,9 +1245,9 @@ public final class AnnotationProcessor extends AbstractProcessor {
                         .this
                         .makeType(getMethodElement())
                         .flatMap(this::parameterizedReturnType)
-                        .filter(t -> isSubtype(t, getMethodReturnType(), getMethodElement()))
+                        .filter(t -> isSubtype(t, getComponentType(), getMethodElement()))
                         .map(TypeMirror.class::cast);
-                final TypeMirror declaredReturnType = declaredMakeType.orElseGet(this::getMethodReturnType);
+                final TypeMirror declaredReturnType = declaredMakeType.orElseGet(this::getComponentType);
                 val declaredReturnElement = element(declaredReturnType);
                 if (isModule(declaredReturnElement)) {
                     val moduleType = Optional
@@ -461,8 +1263,8 @@ public final class AnnotationProcessor extends AbstractProcessor {
 
             private Optional<DeclaredType> parameterizedReturnType(final TypeMirror makeType) {
                 val makeElement = typeElement(makeType);
-                final List<? extends TypeMirror> methodReturnTypeArguments = getMethodReturnType() instanceof DeclaredType
-                        ? ((DeclaredType) getMethodReturnType()).getTypeArguments()
+                final List<? extends TypeMirror> methodReturnTypeArguments = getComponentType() instanceof DeclaredType
+                        ? ((DeclaredType) getComponentType()).getTypeArguments()
                         : Collections.emptyList();
                 val partitionedMethodReturnTypeArguments =
                         methodReturnTypeArguments
@@ -506,14 +1308,58 @@ public final class AnnotationProcessor extends AbstractProcessor {
             @Getter(lazy = true)
             private final String companionInterfaceRef = getElement().getSimpleName() + "$.super";
 
+            @Getter(lazy = true)
+            private final boolean eager = !isCachingDisabled()
+                    && getMethodParameters().isEmpty()
+                    && (hasAnnotation(getMethodElement(), Eager.class) || hasAnnotation(getElement(), Eager.class));
+
+            @Getter(lazy = true)
+            private final int scopeIndex = getScopedMethodNames().indexOf(getMethodName());
+
             Consumer<Output> forAllComponentMethods() {
-                return out -> filteredOverridableMethods((TypeElement) getMakeElement())
-                        // HC SVNT DRACONES!
-                        .map(this::newComponentMethod)
+                return out -> getComponentMethods()
+                        .stream()
                         .map(m -> m.getMethodVisitor().visitMethod(m))
                         .forEach(c -> c.accept(out));
             }
 
+            @Getter(lazy = true)
+            private final List<ComponentMethod> componentMethods =
+                    filteredOverridableMethods((TypeElement) getMakeElement())
+                            // HC SVNT DRACONES!
+                            .map(this::newComponentMethod)
+                            .collect(Collectors.toList());
+
+            // Components are local classes, which need Java 16 for static members, so their sentinel may need to be an
+            // instance field.
+            @Accessors(fluent = true)
+            @Getter(lazy = true)
+            private final boolean hasComponentNullSentinel =
+                    getComponentMethods().stream().anyMatch(Method::isNullSentinel);
+
+            @Getter(lazy = true)
+            private final boolean componentStaticMembers = getFeatures().localStaticMembers();
+
+            @Getter(lazy = true)
+            private final List<ModuleMethod> dependencies = resolveDependencies();
+
+            // The body of a default method is not available to an annotation processor, so only the dependencies of an
+            // abstract method which makes a component are known: They are the module methods which the component
+            // accesses.
+            private List<ModuleMethod> resolveDependencies() {
+                if (!isAbstract(getMethodElement()) || !isMakeTypeAbstract()) {
+                    return Collections.emptyList();
+                }
+                return getComponentMethods()
+                        .stream()
+                        .map(ComponentMethod::getAccessedElement)
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .map(Tuple2::getT2)
+                        .flatMap(e -> getCompanionClassMethods().stream().filter(m -> m.getMethodElement().equals(e)))
+                        .collect(Collectors.toList());
+            }
+
             ComponentMethod newComponentMethod(ExecutableElement e) {
                 return new ComponentMethod() {
 
@@ -635,6 +1481,49 @@ public final class AnnotationProcessor extends AbstractProcessor {
                     return (ExecutableType) getTypes().asMemberOf((DeclaredType) getMakeType(), getMethodElement());
                 }
 
+                @Override
+                MethodVisitor resolveMethodVisitor() {
+                    if (!isCachingDisabled() && getCachingStrategy() == SCOPED) {
+                        warn("Scoped caching is only supported for module methods - falling back to thread-local caching.",
+                                getMethodElement());
+                        return new ThreadLocalCachingVisitor();
+                    }
+                    if (!isCachingDisabled() && getCachingStrategy() == STRIPED) {
+                        warn("Striped caching is only supported for module methods - falling back to thread-local caching.",
+                                getMethodElement());
+                        return new ThreadLocalCachingVisitor();
+                    }
+                    if (!isCachingDisabled() && getCachingStrategy() == STATIC) {
+                        warn("Static caching is only supported for module methods - falling back to thread-safe caching.",
+                                getMethodElement());
+                        return new ThreadSafeCachingVisitor(0, isVarHandles());
+                    }
+                    if (!isCachingDisabled() && getCachingStrategy() == EPOCH) {
+                        warn("Epoch caching is only supported for module methods - falling back to thread-safe caching.",
+                                getMethodElement());
+                        return new ThreadSafeCachingVisitor(0, isVarHandles());
+                    }
+                    if (!isCachingDisabled() && getCachingStrategy() == POOLED) {
+                        warn("Pooled caching is only supported for module methods - caching is disabled.",
+                                getMethodElement());
+                        return new DisabledCachingVisitor();
+                    }
+                    return super.resolveMethodVisitor();
+                }
+
+                @Override
+                String resolveNanoTimeCall() {
+                    return isNanoTimeMethod()
+                            ? ModuleInterface.this.getElement().getSimpleName() + "$.this." + NANO_TIME_METHOD_NAME + "()"
+                            : super.resolveNanoTimeCall();
+                }
+
+                @Override
+                boolean resolveVarHandles() {
+                    // Components are local classes, which need static members for the VarHandles:
+                    return super.resolveVarHandles() && isComponentStaticMembers();
+                }
+
                 @Getter(lazy = true)
                 private final Optional<Lookup> lookup = getAnnotation(getMethodElement(), Lookup.class);
 
@@ -673,6 +1562,30 @@ public final class AnnotationProcessor extends AbstractProcessor {
             @Getter(lazy = true)
             private final String cachingStrategyName = CACHING_STRATEGY_CLASSNAME + "." + getCachingStrategy();
 
+            @Getter(lazy = true)
+            private final String cachingArguments = resolveCachingArguments();
+
+            private String resolveCachingArguments() {
+                val arguments = new ArrayList<String>();
+                val ttl = ttl(getMethodElement());
+                if (!ttl.isEmpty()) {
+                    arguments.add("ttl = " + getElements().getConstantExpression(ttl));
+                }
+                if (refreshAhead(getMethodElement())) {
+                    arguments.add("refreshAhead = true");
+                }
+                val backoff = backoff(getMethodElement());
+                if (!backoff.isEmpty()) {
+                    arguments.add("backoff = " + getElements().getConstantExpression(backoff));
+                }
+                if (0 != maxSize(getMethodElement())) {
+                    arguments.add("maxSize = " + maxSize(getMethodElement()));
+                }
+                return arguments.isEmpty()
+                        ? getCachingStrategyName()
+                        : mkString(Stream.concat(Stream.of("value = " + getCachingStrategyName()), arguments.stream()), "", ", ", "");
+            }
+
             @Getter(lazy = true)
             private final String dependencyCall = resolveDependencyCall();
 
@@ -692,6 +1605,17 @@ public final class AnnotationProcessor extends AbstractProcessor {
                             ? local(getMethodReturnType())
                             : getMethodReturnType().toString();
 
+            @Getter(lazy = true)
+            private final boolean throwingCheckedExceptions =
+                    getMethodType()
+                            .getThrownTypes()
+                            .stream()
+                            .anyMatch(t -> !getTypes().isSubtype(t, getElements().getTypeElement(RuntimeException.class.getName()).asType())
+                                    && !getTypes().isSubtype(t, getElements().getTypeElement(Error.class.getName()).asType()));
+
+            @Getter(lazy = true)
+            private final String erasedMethodCacheType = getTypes().erasure(getMethodCacheType()).toString();
+
             @Getter(lazy = true)
             private final Optional<Element> methodCacheElement =
                     Optional.ofNullable(getTypes().asElement(getMethodCacheType()));
@@ -759,7 +1683,42 @@ public final class AnnotationProcessor extends AbstractProcessor {
             private final MethodVisitor methodVisitor = resolveMethodVisitor();
 
             MethodVisitor resolveMethodVisitor() {
-                return isCachingDisabled() ? new DisabledCachingVisitor() : methodVisitor(getMethodElement());
+                return isCachingDisabled() ? new DisabledCachingVisitor() : methodVisitor(getMethodElement(), isVarHandles());
+            }
+
+            @Getter(lazy = true)
+            private final boolean varHandles = resolveVarHandles();
+
+            boolean resolveVarHandles() {
+                return getFeatures().varHandles();
+            }
+
+            @Getter(lazy = true)
+            private final String nanoTimeCall = resolveNanoTimeCall();
+
+            String resolveNanoTimeCall() {
+                return isNanoTimeMethod() ? "this." + NANO_TIME_METHOD_NAME + "()" : "java.lang.System.nanoTime()";
+            }
+
+            @Getter(lazy = true)
+            private final boolean stats = resolveStats();
+
+            boolean resolveStats() {
+                return false;
+            }
+
+            @Getter(lazy = true)
+            private final boolean jfr = resolveJfr();
+
+            boolean resolveJfr() {
+                return false;
+            }
+
+            @Getter(lazy = true)
+            private final String statsFieldName = resolveStatsFieldName();
+
+            String resolveStatsFieldName() {
+                return getMethodName() + "$stats";
             }
 
             @Getter(lazy = true)
@@ -773,6 +1732,14 @@ public final class AnnotationProcessor extends AbstractProcessor {
             @Getter(lazy = true)
             private final boolean primitiveMethodReturnType = getMethodReturnType().getKind().isPrimitive();
 
+            // The keyed, thread-local, lock-free and striped caches substitute a shared sentinel for null keys and null
+            // values.
+            @Getter(lazy = true)
+            private final boolean nullSentinel = !isCachingDisabled()
+                    && (!getMethodParameters().isEmpty()
+                    || (getCachingStrategy() == THREAD_LOCAL || getCachingStrategy() == LOCK_FREE
+                    || getCachingStrategy() == STRIPED || getCachingStrategy() == EPOCH) && isNullable());
+
             @Getter(lazy = true)
             private final String setterSignatureWithoutModifiers =
                     getMethodTypeParametersWithBoundsList() + "void " + setterName(getMethodElement()) +
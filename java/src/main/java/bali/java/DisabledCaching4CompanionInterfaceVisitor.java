@@ -31,7 +31,10 @@ final class DisabledCaching4CompanionInterfaceVisitor extends DisabledCachingVis
         return out -> {
             out.nl();
             if (!m.isCachingDisabled()) {
-                out.ad("@bali.Cache").ad(m.isNullable() ? "Nullable" : "").ad("(").ad(m.getCachingStrategyName()).ad(")").nl();
+                out.ad("@bali.Cache").ad(m.isNullable() ? "Nullable" : "").ad("(").ad(m.getCachingArguments()).ad(")").nl();
+                if (m.isEager()) {
+                    out.ad("@bali.Eager").nl();
+                }
             }
             out
                     .ad("@Override").nl()
@@ -39,6 +42,11 @@ final class DisabledCaching4CompanionInterfaceVisitor extends DisabledCachingVis
                     .in();
             if (m.isMakeTypeAbstract()) {
                 out.ad("final class ").ad(m.getMakeElementSimpleName()).ad("$").ad(m.isMakeTypeInterface() ? " implements " : " extends ").ad(m.getMakeType().toString()).ad(" {").nl().in();
+                if (m.hasComponentNullSentinel()) {
+                    out
+                            .nl()
+                            .ad("private ").ad(m.isComponentStaticMembers() ? "static " : "").ad("final java.lang.Object NULL$ = new java.lang.Object();").nl();
+                }
                 m.forAllComponentMethods().accept(out);
                 out.out().ad("}").nl();
             }
@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+
+import java.util.function.Consumer;
+
+// Caches the value along with the epoch of the module it was built in, so that advancing the epoch invalidates all
+// values at once.
+// The value and its epoch are stored in separate volatile fields, so that a hit only compares the epoch of the module
+// with the epoch of the value, without an indirection or an allocation per value.
+// The epoch of the value is written after the value, so that a reader which sees the epoch also sees the value.
+// Clearing the cache resets the epoch of the value before the value, so a reference value is also checked for null,
+// which the NULL$ sentinel of the companion class substitutes for.
+final class EpochCachingVisitor implements MethodVisitor {
+
+    // The epoch of a value which has never been built or has been cleared.
+    private static final String NO_EPOCH = "-1L";
+
+    @Override
+    public Consumer<Output> visitMethodAnnotations(Method m) {
+        return m.isNullable()
+                ? out -> out.ad("@SuppressWarnings(\"unchecked\")").nl()
+                : NOOP;
+    }
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return visitNonNullField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return visitNonNullMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return visitCacheMethodEnd(m,
+                "null != result ? result : NULL$",
+                "NULL$ != value ? (" + m.getLocalMethodCacheType() + ") value : null");
+    }
+
+    @Override
+    public Consumer<Output> visitNullableSetterBody(Method m) {
+        return visitCacheSetterBody(m, "null != value ? value : NULL$");
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return out -> {
+            out
+                    .nl()
+                    .ad(prefix).ad("volatile ").ad(fieldType(m)).ad(" ").ad(m.getMethodName()).ad(";").nl()
+                    .ad(prefix).ad("volatile long ").ad(m.getMethodName()).ad("$epoch = ").ad(NO_EPOCH).ad(";").nl();
+            visitLockField(m, prefix).accept(out);
+        };
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return out -> {
+            out.ad("final long epoch = this.epoch$;").nl();
+            if (!m.isPrimitiveMethodReturnType()) {
+                out.ad(fieldType(m)).ad(" value;").nl();
+            }
+            out
+                    .ad("if (").ad(miss(m)).ad(") {").nl()
+                    .ad("    this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                    .ad("    try {").nl()
+                    .ad("        if (").ad(miss(m)).ad(") {").nl()
+                    .ad("            final ").ad(m.isPrimitiveMethodReturnType() ? m.getLocalMethodReturnType() : m.getLocalMethodCacheType()).ad(" result = ")
+                    .in(3);
+        };
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return visitCacheMethodEnd(m, "result", "value");
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullSetterBody(Method m) {
+        return visitCacheSetterBody(m, "value");
+    }
+
+    private Consumer<Output> visitCacheMethodEnd(Method m, String cached, String result) {
+        return out -> out
+                .out(3)
+                .ad(";").nl()
+                .ad("            this.").ad(m.getMethodName()).ad(" = ").ad(cached).ad(";").nl()
+                .ad("            this.").ad(m.getMethodName()).ad("$epoch = epoch;").nl()
+                .ad("            return result;").nl()
+                .ad("        }").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .ad("return ").ad(m.isPrimitiveMethodReturnType() ? "this." + m.getMethodName() : result).ad(";").nl();
+    }
+
+    private Consumer<Output> visitCacheSetterBody(Method m, String value) {
+        return out -> out
+                .ad("    this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("    try {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad(" = ").ad(value).ad(";").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$epoch = this.epoch$;").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                .ad("    }").nl();
+    }
+
+    // Holds the lock so that a getter which is building the value from the dependencies before they got invalidated
+    // cannot cache it after the cache has been cleared.
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> {
+            out
+                    .ad("this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                    .ad("try {").nl()
+                    .ad("    this.").ad(m.getMethodName()).ad("$epoch = ").ad(NO_EPOCH).ad(";").nl();
+            if (!m.isPrimitiveMethodReturnType()) {
+                out.ad("    this.").ad(m.getMethodName()).ad(" = null;").nl();
+            }
+            out
+                    .ad("} finally {").nl()
+                    .ad("    this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                    .ad("}").nl();
+        };
+    }
+
+    // A primitive value is never cleared, so its epoch is all there is to check.
+    private static String miss(Method m) {
+        return m.isPrimitiveMethodReturnType()
+                ? "epoch != this." + m.getMethodName() + "$epoch"
+                : "epoch != this." + m.getMethodName() + "$epoch || null == (value = this." + m.getMethodName() + ")";
+    }
+
+    private static String fieldType(Method m) {
+        return m.isPrimitiveMethodReturnType()
+                ? m.getLocalMethodReturnType()
+                : m.isNullable()
+                ? "java.lang.Object"
+                : m.getLocalMethodCacheType();
+    }
+}
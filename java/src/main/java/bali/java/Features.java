@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The language and library features which the generated code may use, depending on the Java release it gets compiled
+ * for.
+ * The release is the source version of the compiler unless it's lowered by the processor option
+ * {@value #RELEASE_OPTION}, e.g. {@code -Abali.release=8} for generating the same code as for Java 8.
+ * Collecting statistics for the module methods is opt-in by the processor option {@value #STATS_OPTION}, e.g.
+ * {@code -Abali.stats=true}, and so is emitting JDK Flight Recorder events for the construction of components by the
+ * processor option {@value #JFR_OPTION}, e.g. {@code -Abali.jfr=true}.
+ * Every module which emits JDK Flight Recorder events defines its own event class, but all of them share the event name
+ * {@code bali.ComponentConstructed}, so that a recording can enable them all at once.
+ * The field {@code moduleType} tells them apart.
+ */
+@RequiredArgsConstructor
+final class Features {
+
+    static final String RELEASE_OPTION = "bali.release";
+
+    static final String STATS_OPTION = "bali.stats";
+
+    static final String JFR_OPTION = "bali.jfr";
+
+    static final int MIN_RELEASE = 8;
+
+    private final int release;
+
+    private final boolean stats;
+
+    private final boolean jfr;
+
+    /** Returns true if the generated code may use {@code java.lang.invoke.VarHandle}. */
+    boolean varHandles() {
+        return 9 <= release;
+    }
+
+    /** Returns true if local classes, e.g. the generated components, may have static members. */
+    boolean localStaticMembers() {
+        return 16 <= release;
+    }
+
+    /** Returns true if the generated code should collect statistics for the module methods. */
+    boolean stats() {
+        return stats;
+    }
+
+    /**
+     * Returns true if the generated code should emit JDK Flight Recorder events for the construction of components.
+     * Requires Java 11 for the {@code jdk.jfr} API.
+     */
+    boolean jfr() {
+        return jfr && 11 <= release;
+    }
+
+    /** Returns true if the generated code should emit JDK Flight Recorder events, but the release doesn't support it. */
+    boolean jfrIgnored() {
+        return jfr && !jfr();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+@RequiredArgsConstructor
+final class KeyedCachingVisitor implements MethodVisitor {
+
+    private final boolean threadSafe;
+
+    private final int maxSize;
+
+    @Override
+    public Consumer<Output> visitMethod(Method m) {
+        final Consumer<Output> method = hasKeyClass(m)
+                ? MethodVisitor.super.visitMethod(m).andThen(visitKey(m))
+                : MethodVisitor.super.visitMethod(m);
+        return 0 < maxSize ? method.andThen(visitCacheStats(m)) : method;
+    }
+
+    @Override
+    public Consumer<Output> visitMethodAnnotations(Method m) {
+        return out -> out.ad("@SuppressWarnings(\"unchecked\")").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return out -> out
+                .nl()
+                .ad(prefix).ad("final ").ad(mapType()).ad(" ").ad(m.getMethodName()).ad(" = new ").ad(mapClass()).ad("<>(").ad(mapArguments()).ad(");").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return threadSafe ? visitFutureMethodBegin(m) : visitValueMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return threadSafe ? visitFutureMethodEnd(m) : visitValueMethodEnd(m);
+    }
+
+    private Consumer<Output> visitFutureMethodBegin(Method m) {
+        return out -> out
+                .ad("final java.lang.Object key$ = ").ad(key(m, true)).ad(";").nl()
+                .ad("Task$ task$;").nl()
+                .ad("if (null == (task$ = this.").ad(m.getMethodName()).ad(".get(key$))) {").nl()
+                .ad("    final Task$ created$ = new Task$(() -> ")
+                .in();
+    }
+
+    private Consumer<Output> visitFutureMethodEnd(Method m) {
+        return out -> {
+            out
+                    .out()
+                    .ad(");").nl()
+                    .ad("    if (null == (task$ = this.").ad(m.getMethodName()).ad(".putIfAbsent(key$, created$))) {").nl()
+                    .ad("        (task$ = created$).run();").nl()
+                    .ad("    }").nl()
+                    .ad("}").nl()
+                    .ad("try {").nl()
+                    .ad("    return (").ad(m.getLocalMethodCacheType()).ad(") join$(task$);").nl()
+                    .ad("} catch (final java.util.concurrent.ExecutionException e$) {").nl()
+                    .ad("    this.").ad(m.getMethodName()).ad(".remove(key$, task$);").nl()
+                    .ad("    final java.lang.Throwable cause$ = e$.getCause();").nl();
+            out.in();
+            visitRethrow(m, "cause$").accept(out);
+            out
+                    .out()
+                    .ad("}").nl();
+        };
+    }
+
+    private Consumer<Output> visitValueMethodBegin(Method m) {
+        return out -> out
+                .ad("final java.lang.Object key$ = ").ad(key(m, 0 < maxSize)).ad(";").nl()
+                .ad("java.lang.Object value$;").nl()
+                .ad("if (null == (value$ = this.").ad(m.getMethodName()).ad(".get(key$))) {").nl()
+                .ad("    final ").ad(m.getLocalMethodCacheType()).ad(" result$ = ")
+                .in();
+    }
+
+    private Consumer<Output> visitValueMethodEnd(Method m) {
+        return out -> out
+                .out()
+                .ad(";").nl()
+                .ad("    this.").ad(m.getMethodName()).ad(".put(key$, null != result$ ? result$ : NULL$);").nl()
+                .ad("    return result$;").nl()
+                .ad("}").nl()
+                .ad("return NULL$ != value$ ? (").ad(m.getLocalMethodCacheType()).ad(") value$ : null;").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return visitNullableField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return visitNullableMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return visitNullableMethodEnd(m);
+    }
+
+    @Override
+    public Consumer<Output> visitSetter(Method m) {
+        return NOOP;
+    }
+
+    private Consumer<Output> visitCacheStats(Method m) {
+        return out -> out
+                .nl()
+                .ad("public java.util.Map<java.lang.String, java.lang.Long> ").ad(m.getMethodName()).ad("$cacheStats() {").nl()
+                .ad("    return this.").ad(m.getMethodName()).ad(".stats();").nl()
+                .ad("}").nl();
+    }
+
+    private String mapClass() {
+        return 0 < maxSize
+                ? "Bounded$"
+                : threadSafe
+                ? "java.util.concurrent.ConcurrentHashMap"
+                : "java.util.HashMap";
+    }
+
+    private String mapType() {
+        val valueType = threadSafe ? "Task$" : "java.lang.Object";
+        return 0 < maxSize
+                ? mapClass() + "<" + valueType + ">"
+                : mapClass() + "<java.lang.Object, " + valueType + ">";
+    }
+
+    private String mapArguments() {
+        if (0 < maxSize) {
+            // The length of the frequency sketch is a power of two with about four counters per entry:
+            val length = Integer.highestOneBit(Math.min(maxSize, 1 << 24) * 4 - 1) << 1;
+            return maxSize + ", " + length;
+        } else {
+            return "";
+        }
+    }
+
+    // A ConcurrentHashMap, including the one in a Bounded$, doesn't support null keys, so NULL$ substitutes for them.
+    private static String key(Method m, boolean nonNull) {
+        if (hasKeyClass(m)) {
+            return "new " + m.getMethodName() + "$Key(" + m.getMethodParametersWithoutTypesList() + ")";
+        }
+        val parameter = m.getMethodParameters().get(0);
+        return nonNull
+                ? "null != " + parameter.getSimpleName() + " ? " + parameter.getSimpleName() + " : NULL$"
+                : parameter.getSimpleName().toString();
+    }
+
+    // A single primitive parameter also gets a key class, so that it doesn't get boxed.
+    private static boolean hasKeyClass(Method m) {
+        val parameters = m.getMethodParameters();
+        return 1 < parameters.size() || parameters.get(0).asType().getKind().isPrimitive();
+    }
+
+    // The key stores primitive parameters without boxing them and computes its hash code only once.
+    // Its equality matches the equality of a list of the boxed parameters, which is what a key used to be.
+    // Other parameters are stored as objects, so the key class doesn't need any type parameters of the method.
+    private static Consumer<Output> visitKey(Method m) {
+        return out -> {
+            val key = m.getMethodName() + "$Key";
+            val parameters = m.getMethodParameters();
+            out
+                    .nl()
+                    .ad("private static final class ").ad(key).ad(" {").nl()
+                    .nl()
+                    .in();
+            parameters.forEach(p -> out.ad("private final ").ad(fieldType(p)).ad(" ").ad(p.getSimpleName()).ad(";").nl());
+            out
+                    .ad("private final int hash$;").nl()
+                    .nl()
+                    .ad(key).ad("(").ad(Utils.mkString(parameters.stream().map(p -> "final " + fieldType(p) + " " + p.getSimpleName()), "", ", ", "")).ad(") {").nl();
+            parameters.forEach(p -> out.ad("    this.").ad(p.getSimpleName()).ad(" = ").ad(p.getSimpleName()).ad(";").nl());
+            out
+                    .ad("    int hash$ = 1;").nl();
+            parameters.forEach(p -> out.ad("    hash$ = 31 * hash$ + ").ad(keyHashCode(p)).ad(";").nl());
+            out
+                    .ad("    this.hash$ = hash$;").nl()
+                    .ad("}").nl()
+                    .nl()
+                    .ad("@Override").nl()
+                    .ad("public boolean equals(final java.lang.Object obj) {").nl()
+                    .ad("    if (this == obj) {").nl()
+                    .ad("        return true;").nl()
+                    .ad("    }").nl()
+                    .ad("    if (!(obj instanceof ").ad(key).ad(")) {").nl()
+                    .ad("        return false;").nl()
+                    .ad("    }").nl()
+                    .ad("    final ").ad(key).ad(" that = (").ad(key).ad(") obj;").nl()
+                    .ad("    return this.hash$ == that.hash$");
+            parameters.forEach(p -> out.nl().ad("            && ").ad(keyEquals(p)));
+            out
+                    .ad(";").nl()
+                    .ad("}").nl()
+                    .nl()
+                    .ad("@Override").nl()
+                    .ad("public int hashCode() {").nl()
+                    .ad("    return this.hash$;").nl()
+                    .ad("}").nl()
+                    .out()
+                    .ad("}").nl();
+        };
+    }
+
+    private static String fieldType(VariableElement p) {
+        return p.asType().getKind().isPrimitive() ? p.asType().toString() : "java.lang.Object";
+    }
+
+    // Uses the hash code of the boxed value.
+    private static String keyHashCode(VariableElement p) {
+        val kind = p.asType().getKind();
+        return kind.isPrimitive()
+                ? "java.lang." + boxedSimpleName(kind) + ".hashCode(this." + p.getSimpleName() + ")"
+                : "java.util.Objects.hashCode(this." + p.getSimpleName() + ")";
+    }
+
+    // Compares floating point values like their boxed values, so that NaN equals NaN.
+    private static String keyEquals(VariableElement p) {
+        val kind = p.asType().getKind();
+        val name = p.getSimpleName();
+        return kind == TypeKind.FLOAT || kind == TypeKind.DOUBLE
+                ? "0 == java.lang." + boxedSimpleName(kind) + ".compare(this." + name + ", that." + name + ")"
+                : kind.isPrimitive()
+                ? "this." + name + " == that." + name
+                : "java.util.Objects.equals(this." + name + ", that." + name + ")";
+    }
+
+    private static String boxedSimpleName(TypeKind kind) {
+        switch (kind) {
+            case CHAR:
+                return "Character";
+            case INT:
+                return "Integer";
+            default:
+                final String name = kind.name().toLowerCase(Locale.ROOT);
+                return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
+    }
+
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> out.ad("this.").ad(m.getMethodName()).ad(".clear();").nl();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+import bali.java.AnnotationProcessor.ModuleInterface.ModuleMethod;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+
+import javax.lang.model.type.TypeKind;
+import java.util.function.Consumer;
+
+// Publishes the value with a compare-and-set on a plain field of the module instance, so that a cache hit is a single
+// load without any indirection:
+// Through a VarHandle if the release supports it, through a static field updater in the companion class, or else
+// through an atomic reference, because the local classes of components can't have static members before Java 16.
+// A null value is represented by the NULL$ sentinel.
+// A primitive value of up to 32 bits is packed into a long together with a presence bit, so that it doesn't need to be
+// boxed. A long or double value has no spare bit, so it gets boxed.
+@RequiredArgsConstructor
+final class LockFreeCachingVisitor implements MethodVisitor {
+
+    // The bit which marks a packed primitive value as present.
+    private static final String PRESENT = "0x100000000L";
+
+    // Whether to access the cache field with acquire/release semantics through a VarHandle.
+    // Requires Java 9 for VarHandles and Java 16 for static members in the local classes of components.
+    private final boolean varHandles;
+
+    @Override
+    public Consumer<Output> visitMethodAnnotations(Method m) {
+        return m.isNullable() || varHandles && !isPacked(m)
+                ? out -> out.ad("@SuppressWarnings(\"unchecked\")").nl()
+                : NOOP;
+    }
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return visitCacheField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return visitCacheMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return visitCacheMethodEnd(m,
+                "null != result ? result : NULL$",
+                "NULL$ != value ? (" + m.getLocalMethodCacheType() + ") value : null");
+    }
+
+    @Override
+    public Consumer<Output> visitNullableSetterBody(Method m) {
+        return out -> out.ad("    ").ad(set(m, "this", "null != value ? value : NULL$")).ad(";").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return visitCacheField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return visitCacheMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return visitCacheMethodEnd(m, "result", "value");
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullSetterBody(Method m) {
+        return out -> out.ad("    ").ad(set(m, "this", "value")).ad(";").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveMethodEnd(Method m) {
+        return isPacked(m)
+                ? visitCacheMethodEnd(m, pack(m, "result"), unpack(m, "value"))
+                : visitNonNullMethodEnd(m);
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveSetterBody(Method m) {
+        return out -> out
+                .ad("    ").ad(set(m, "this", isPacked(m) ? pack(m, "value") : m.getLocalMethodCacheType() + ".valueOf(value)")).ad(";").nl();
+    }
+
+    private Consumer<Output> visitCacheField(Method m, String prefix) {
+        return out -> {
+            out.nl();
+            if (varHandles) {
+                out
+                        .ad(prefix).ad(fieldType(m)).ad(" ").ad(m.getMethodName()).ad(";").nl()
+                        .nl()
+                        .ad("private static final java.lang.invoke.VarHandle ").ad(m.getMethodName()).ad("$handle;").nl()
+                        .nl()
+                        .ad("static {").nl()
+                        .ad("    try {").nl()
+                        .ad("        final java.lang.invoke.MethodHandles.Lookup lookup = java.lang.invoke.MethodHandles.lookup();").nl()
+                        .ad("        ").ad(m.getMethodName()).ad("$handle = lookup.findVarHandle(lookup.lookupClass(), \"").ad(m.getMethodName()).ad("\", ").ad(erasedFieldType(m)).ad(".class);").nl()
+                        .ad("    } catch (final java.lang.ReflectiveOperationException e) {").nl()
+                        .ad("        throw new java.lang.ExceptionInInitializerError(e);").nl()
+                        .ad("    }").nl()
+                        .ad("}").nl();
+            } else if (isUpdater(m)) {
+                val companionClass = ((ModuleMethod) m).getCompanionClassName();
+                out
+                        .ad(prefix).ad("volatile ").ad(fieldType(m)).ad(" ").ad(m.getMethodName()).ad(";").nl()
+                        .nl()
+                        // The type arguments are raw if the companion class or the cache type is generic:
+                        .ad("@SuppressWarnings(\"rawtypes\")").nl();
+                if (isPacked(m)) {
+                    out
+                            .ad("private static final java.util.concurrent.atomic.AtomicLongFieldUpdater<").ad(companionClass).ad("> ").ad(m.getMethodName()).ad("$updater =").nl()
+                            .ad("        java.util.concurrent.atomic.AtomicLongFieldUpdater.newUpdater(").ad(companionClass).ad(".class, \"").ad(m.getMethodName()).ad("\");").nl();
+                } else {
+                    out
+                            .ad("private static final java.util.concurrent.atomic.AtomicReferenceFieldUpdater<").ad(companionClass).ad(", ").ad(erasedFieldType(m)).ad("> ").ad(m.getMethodName()).ad("$updater =").nl()
+                            .ad("        java.util.concurrent.atomic.AtomicReferenceFieldUpdater.newUpdater(").ad(companionClass).ad(".class, ").ad(erasedFieldType(m)).ad(".class, \"").ad(m.getMethodName()).ad("\");").nl();
+                }
+            } else {
+                val atomicType = isPacked(m)
+                        ? "java.util.concurrent.atomic.AtomicLong"
+                        : "java.util.concurrent.atomic.AtomicReference<" + fieldType(m) + ">";
+                out.ad(prefix).ad("final ").ad(atomicType).ad(" ").ad(m.getMethodName()).ad(" = new ").ad(atomicType.replaceFirst("<.*", "<>")).ad("();").nl();
+            }
+        };
+    }
+
+    // If another thread has published a value in the meantime, then it gets returned instead of the result.
+    // If the cache has been cleared in the meantime, then the result gets returned without caching it.
+    private Consumer<Output> visitCacheMethodBegin(Method m) {
+        return out -> out
+                .ad(fieldType(m)).ad(" value;").nl()
+                .ad("if (").ad(absent(m)).ad(" == (value = ").ad(get(m, "this")).ad(")) {").nl()
+                .ad("    final ").ad(isPacked(m) ? m.getLocalMethodReturnType() : m.getLocalMethodCacheType()).ad(" result = ")
+                .in();
+    }
+
+    private Consumer<Output> visitCacheMethodEnd(Method m, String cached, String result) {
+        return out -> out
+                .out()
+                .ad(";").nl()
+                .ad("    if (").ad(compareAndSet(m, cached)).ad(" || ").ad(absent(m)).ad(" == (value = ").ad(get(m, "this")).ad(")) {").nl()
+                .ad("        return result;").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .ad("return ").ad(result).ad(";").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitPresent(Method m, String module) {
+        return out -> out.ad(absent(m)).ad(" != ").ad(get(m, module));
+    }
+
+    // A null value is represented by the NULL$ sentinel of the companion class, so it can simply be copied.
+    @Override
+    public Consumer<Output> visitTransfer(Method m, String from, String to) {
+        return out -> out.ad(set(m, to, get(m, from))).ad(";").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitDisplace(Method m, String module, String consumer) {
+        return m.isPrimitiveMethodReturnType()
+                ? NOOP
+                : out -> out
+                .ad("{").nl()
+                .ad("    final java.lang.Object value = ").ad(get(m, module)).ad(";").nl()
+                .ad("    if (null != value").ad(m.isNullable() ? " && NULL$ != value" : "").ad(") {").nl()
+                .ad("        ").ad(consumer).ad(".accept(value);").nl()
+                .ad("    }").nl()
+                .ad("}").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> out.ad(set(m, "this", absent(m))).ad(";").nl();
+    }
+
+    private boolean isUpdater(Method m) {
+        return m instanceof ModuleMethod;
+    }
+
+    private String get(Method m, String module) {
+        return varHandles
+                ? "(" + fieldType(m) + ") " + m.getMethodName() + "$handle.getAcquire(" + module + ")"
+                : isUpdater(m)
+                ? module + "." + m.getMethodName()
+                : module + "." + m.getMethodName() + ".get()";
+    }
+
+    private String set(Method m, String module, String value) {
+        return varHandles
+                ? m.getMethodName() + "$handle.setRelease(" + module + ", " + value + ")"
+                : isUpdater(m)
+                ? module + "." + m.getMethodName() + " = " + value
+                : module + "." + m.getMethodName() + ".set(" + value + ")";
+    }
+
+    private String compareAndSet(Method m, String value) {
+        return varHandles
+                ? m.getMethodName() + "$handle.compareAndSet(this, " + absent(m) + ", " + value + ")"
+                : isUpdater(m)
+                ? m.getMethodName() + "$updater.compareAndSet(this, " + absent(m) + ", " + value + ")"
+                : "this." + m.getMethodName() + ".compareAndSet(" + absent(m) + ", " + value + ")";
+    }
+
+    // The VarHandle needs the exact field type, even for a null literal.
+    private String absent(Method m) {
+        return isPacked(m) ? "0L" : varHandles ? "(" + fieldType(m) + ") null" : "null";
+    }
+
+    private static String fieldType(Method m) {
+        return m.isNullable()
+                ? "java.lang.Object"
+                : isPacked(m)
+                ? "long"
+                : m.getLocalMethodCacheType();
+    }
+
+    private static String erasedFieldType(Method m) {
+        return m.isNullable()
+                ? "java.lang.Object"
+                : isPacked(m)
+                ? "long"
+                : m.getErasedMethodCacheType();
+    }
+
+    private static boolean isPacked(Method m) {
+        switch (m.getMethodReturnType().getKind()) {
+            case BOOLEAN:
+            case BYTE:
+            case SHORT:
+            case CHAR:
+            case INT:
+            case FLOAT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String pack(Method m, String value) {
+        val kind = m.getMethodReturnType().getKind();
+        return kind == TypeKind.BOOLEAN
+                ? "(" + value + " ? " + PRESENT + " | 1L : " + PRESENT + ")"
+                : kind == TypeKind.FLOAT
+                ? "(" + PRESENT + " | java.lang.Float.floatToRawIntBits(" + value + ") & 0xFFFFFFFFL)"
+                : "(" + PRESENT + " | " + value + " & 0xFFFFFFFFL)";
+    }
+
+    private static String unpack(Method m, String value) {
+        val kind = m.getMethodReturnType().getKind();
+        return kind == TypeKind.BOOLEAN
+                ? "0L != (" + value + " & 1L)"
+                : kind == TypeKind.FLOAT
+                ? "java.lang.Float.intBitsToFloat((int) " + value + ")"
+                : "(" + m.getLocalMethodReturnType() + ") " + value;
+    }
+}
@@ -18,7 +18,9 @@ package bali.java;
 import bali.java.AnnotationProcessor.ModuleInterface.Method;
 import bali.java.AnnotationProcessor.ModuleInterface.ModuleMethod;
 
+import javax.lang.model.type.TypeKind;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 interface MethodVisitor {
 
@@ -26,45 +28,95 @@ interface MethodVisitor {
 
     default Consumer<Output> visitModuleMethod4CompanionInterface(ModuleMethod m) {
         return visitMethodBegin(m)
-                .andThen(out -> out.ad("new ").ad(m.isMakeTypeAbstract() ? m.getMakeElementSimpleName() + "$" : m.getLocalMakeType()).ad("()"))
+                .andThen(out -> {
+                    if (m.isAsync()) {
+                        out.ad("java.util.concurrent.CompletableFuture.supplyAsync(() -> ");
+                    }
+                    out.ad("new ").ad(m.isMakeTypeAbstract() ? m.getMakeElementSimpleName() + "$" : m.getLocalMakeType()).ad("()");
+                    if (m.isAsync()) {
+                        out.ad(m.getExecutorArgument()).ad(")");
+                    }
+                })
                 .andThen(visitMethodEnd(m));
     }
 
     default Consumer<Output> visitMethod(Method m) {
         return visitField(m, "private ")
-                .andThen(visitMethodBegin(m))
+                .andThen(visitMethodBegin0(m))
+                .andThen(visitCallStats(m))
+                .andThen(visitMethodBodyBegin(m))
                 .andThen(out -> out.ad(m.getDependencyCall()))
                 .andThen(visitMethodEnd(m))
                 .andThen(visitSetter(m));
     }
 
     default Consumer<Output> visitField(Method m, String prefix) {
-        return m.isNullable() ? visitNullableField(m, prefix) : visitNonNullField(m, prefix);
+        return m.isNullable()
+                ? visitNullableField(m, prefix)
+                : m.isPrimitiveMethodReturnType()
+                ? visitPrimitiveField(m, prefix)
+                : visitNonNullField(m, prefix);
     }
 
     Consumer<Output> visitNullableField(Method m, String prefix);
 
     Consumer<Output> visitNonNullField(Method m, String prefix);
 
+    default Consumer<Output> visitPrimitiveField(Method m, String prefix) {
+        return visitNonNullField(m, prefix);
+    }
+
     default Consumer<Output> visitMethodBegin(Method m) {
-        return visitMethodBegin0(m)
-                .andThen(m.isNullable() ? visitNullableMethodBegin(m) : visitNonNullMethodBegin(m));
+        return visitMethodBegin0(m).andThen(visitMethodBodyBegin(m));
+    }
+
+    default Consumer<Output> visitMethodBodyBegin(Method m) {
+        return m.isNullable()
+                ? visitNullableMethodBegin(m)
+                : m.isPrimitiveMethodReturnType()
+                ? visitPrimitiveMethodBegin(m)
+                : visitNonNullMethodBegin(m);
+    }
+
+    // Counts the call of a module method if the companion class collects statistics.
+    default Consumer<Output> visitCallStats(Method m) {
+        return m.isStats() ? out -> out.ad("this.").ad(m.getStatsFieldName()).ad(".call();").nl() : NOOP;
+    }
+
+    default Consumer<Output> visitLockField(Method m, String prefix) {
+        return out -> out
+                .ad(prefix).ad("final java.util.concurrent.locks.ReentrantLock ").ad(m.getMethodName()).ad("$lock = new java.util.concurrent.locks.ReentrantLock();").nl();
     }
 
     Consumer<Output> visitNullableMethodBegin(Method m);
 
     Consumer<Output> visitNonNullMethodBegin(Method m);
 
+    default Consumer<Output> visitPrimitiveMethodBegin(Method m) {
+        return visitNonNullMethodBegin(m);
+    }
+
     default Consumer<Output> visitMethodBegin0(Method m) {
-        return out -> out
-                .nl()
-                .ad("@Override").nl()
-                .ad(m.getMethodModifiers().toString()).ad(m.getMethodSignatureWithoutModifiers()).ad("{").nl()
-                .in();
+        return out -> {
+            out.nl();
+            visitMethodAnnotations(m).accept(out);
+            out
+                    .ad("@Override").nl()
+                    .ad(m.getMethodModifiers().toString()).ad(m.getMethodSignatureWithoutModifiers()).ad("{").nl()
+                    .in();
+        };
+    }
+
+    default Consumer<Output> visitMethodAnnotations(Method m) {
+        return NOOP;
     }
 
     default Consumer<Output> visitMethodEnd(Method m) {
-        return (m.isNullable() ? visitNullableMethodEnd(m) : visitNonNullMethodEnd(m))
+        return (m.isNullable()
+                ? visitNullableMethodEnd(m)
+                : m.isPrimitiveMethodReturnType()
+                ? visitPrimitiveMethodEnd(m)
+                : visitNonNullMethodEnd(m))
                 .andThen(visitMethodEnd0(m));
     }
 
@@ -72,6 +124,10 @@ interface MethodVisitor {
 
     Consumer<Output> visitNonNullMethodEnd(Method m);
 
+    default Consumer<Output> visitPrimitiveMethodEnd(Method m) {
+        return visitNonNullMethodEnd(m);
+    }
+
     default Consumer<Output> visitMethodEnd0(Method ignoredM) {
         return out -> out.out().ad("}").nl();
     }
@@ -81,12 +137,66 @@ interface MethodVisitor {
             out
                     .nl()
                     .ad(m.getMethodModifiers().toString()).ad(m.getSetterSignatureWithoutModifiers()).ad(" {").nl();
-            (m.isNullable() ? visitNullableSetterBody(m) : visitNonNullSetterBody(m)).accept(out);
+            if (m.isStats()) {
+                out.ad("    this.").ad(m.getStatsFieldName()).ad(".set();").nl();
+            }
+            (m.isNullable()
+                    ? visitNullableSetterBody(m)
+                    : m.isPrimitiveMethodReturnType()
+                    ? visitPrimitiveSetterBody(m)
+                    : visitNonNullSetterBody(m))
+                    .accept(out);
             out
                     .ad("}").nl();
         };
     }
 
+    // Rethrows the given throwable, which must have been thrown by the dependency call.
+    default Consumer<Output> visitRethrow(Method m, String throwable) {
+        return out -> {
+            Stream
+                    .concat(
+                            Stream.of("java.lang.RuntimeException", "java.lang.Error"),
+                            m.getMethodType()
+                                    .getThrownTypes()
+                                    .stream()
+                                    .filter(t -> t.getKind() != TypeKind.TYPEVAR)
+                                    .map(Object::toString))
+                    .forEach(t -> out
+                            .ad("if (").ad(throwable).ad(" instanceof ").ad(t).ad(") {").nl()
+                            .ad("    throw (").ad(t).ad(") ").ad(throwable).ad(";").nl()
+                            .ad("}").nl());
+            out.ad("throw new java.lang.reflect.UndeclaredThrowableException(").ad(throwable).ad(");").nl();
+        };
+    }
+
+    default Consumer<Output> visitClear(Method m) {
+        return NOOP;
+    }
+
+    // Writes a boolean expression which is true if the cache of the given module instance holds a value.
+    // Only caching strategies which support visitTransfer need to implement this.
+    default Consumer<Output> visitPresent(Method m, String module) {
+        return out -> out.ad("false");
+    }
+
+    // Copies the cached value, if any, from the first module instance into the cache of the second module instance,
+    // which must not have been published yet.
+    default Consumer<Output> visitTransfer(Method m, String from, String to) {
+        return NOOP;
+    }
+
+    // Passes the cached value of the given module instance, if any and not null, to the given consumer.
+    default Consumer<Output> visitDisplace(Method m, String module, String consumer) {
+        return NOOP;
+    }
+
+    // Clears the cache if it still holds the given value, without calling the getter.
+    // Only caching strategies which support evicting failed futures need to implement this.
+    default Consumer<Output> visitEvict(Method m, String value) {
+        return NOOP;
+    }
+
     default Consumer<Output> visitNullableSetterBody(Method m) {
         return NOOP;
     }
@@ -94,4 +204,8 @@ interface MethodVisitor {
     default Consumer<Output> visitNonNullSetterBody(Method m) {
         return visitNullableSetterBody(m);
     }
+
+    default Consumer<Output> visitPrimitiveSetterBody(Method m) {
+        return visitNonNullSetterBody(m);
+    }
 }
@@ -23,34 +23,22 @@ final class NotThreadSafeCachingVisitor implements MethodVisitor {
 
     @Override
     public Consumer<Output> visitNullableField(Method m, String prefix) {
-        return out -> out
-                .nl()
-                .ad(prefix).ad("java.util.function.Supplier<").ad(m.getLocalMethodCacheType()).ad("> ").ad(m.getMethodName()).ad(";").nl();
+        return visitFlaggedField(m, prefix);
     }
 
     @Override
     public Consumer<Output> visitNullableMethodBegin(Method m) {
-        return out -> out
-                .ad("java.util.function.Supplier<").ad(m.getLocalMethodCacheType()).ad("> supplier;").nl()
-                .ad("if (null == (supplier = this.").ad(m.getMethodName()).ad(")) {").nl()
-                .ad("    final ").ad(m.getLocalMethodCacheType()).ad(" value = ")
-                .in();
+        return visitFlaggedMethodBegin(m);
     }
 
     @Override
     public Consumer<Output> visitNullableMethodEnd(Method m) {
-        return out -> out
-                .out()
-                .ad(";").nl()
-                .ad("    this.").ad(m.getMethodName()).ad(" = supplier = () -> value;").nl()
-                .ad("}").nl()
-                .ad("return supplier.get();").nl();
+        return visitFlaggedMethodEnd(m);
     }
 
     @Override
     public Consumer<Output> visitNullableSetterBody(Method m) {
-        return out -> out
-                .ad("    this.").ad(m.getMethodName()).ad(" = () -> value;").nl();
+        return visitFlaggedSetterBody(m);
     }
 
     @Override
@@ -83,4 +71,92 @@ final class NotThreadSafeCachingVisitor implements MethodVisitor {
         return out -> out
                 .ad("    this.").ad(m.getMethodName()).ad(" = value;").nl();
     }
+
+    @Override
+    public Consumer<Output> visitPrimitiveField(Method m, String prefix) {
+        return visitFlaggedField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveMethodBegin(Method m) {
+        return visitFlaggedMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveMethodEnd(Method m) {
+        return visitFlaggedMethodEnd(m);
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveSetterBody(Method m) {
+        return visitFlaggedSetterBody(m);
+    }
+
+    private Consumer<Output> visitFlaggedField(Method m, String prefix) {
+        return out -> out
+                .nl()
+                .ad(prefix).ad(m.getLocalMethodReturnType()).ad(" ").ad(m.getMethodName()).ad(";").nl()
+                .ad(prefix).ad("boolean ").ad(m.getMethodName()).ad("$init;").nl();
+    }
+
+    private Consumer<Output> visitFlaggedMethodBegin(Method m) {
+        return out -> out
+                .ad("if (!this.").ad(m.getMethodName()).ad("$init) {").nl()
+                .ad("    this.").ad(m.getMethodName()).ad(" = ")
+                .in();
+    }
+
+    private Consumer<Output> visitFlaggedMethodEnd(Method m) {
+        return out -> out
+                .out()
+                .ad(";").nl()
+                .ad("    this.").ad(m.getMethodName()).ad("$init = true;").nl()
+                .ad("}").nl()
+                .ad("return this.").ad(m.getMethodName()).ad(";").nl();
+    }
+
+    private Consumer<Output> visitFlaggedSetterBody(Method m) {
+        return out -> out
+                .ad("    this.").ad(m.getMethodName()).ad(" = value;").nl()
+                .ad("    this.").ad(m.getMethodName()).ad("$init = true;").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitPresent(Method m, String module) {
+        return m.isNullable() || m.isPrimitiveMethodReturnType()
+                ? out -> out.ad(module).ad(".").ad(m.getMethodName()).ad("$init")
+                : out -> out.ad("null != ").ad(module).ad(".").ad(m.getMethodName());
+    }
+
+    @Override
+    public Consumer<Output> visitTransfer(Method m, String from, String to) {
+        return m.isNullable() || m.isPrimitiveMethodReturnType()
+                ? out -> out
+                .ad("if (").ad(from).ad(".").ad(m.getMethodName()).ad("$init) {").nl()
+                .ad("    ").ad(to).ad(".").ad(m.getMethodName()).ad(" = ").ad(from).ad(".").ad(m.getMethodName()).ad(";").nl()
+                .ad("    ").ad(to).ad(".").ad(m.getMethodName()).ad("$init = true;").nl()
+                .ad("}").nl()
+                : out -> out.ad(to).ad(".").ad(m.getMethodName()).ad(" = ").ad(from).ad(".").ad(m.getMethodName()).ad(";").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitDisplace(Method m, String module, String consumer) {
+        return m.isPrimitiveMethodReturnType()
+                ? NOOP
+                : out -> out
+                .ad("if (").ad(m.isNullable() ? module + "." + m.getMethodName() + "$init && " : "").ad("null != ").ad(module).ad(".").ad(m.getMethodName()).ad(") {").nl()
+                .ad("    ").ad(consumer).ad(".accept(").ad(module).ad(".").ad(m.getMethodName()).ad(");").nl()
+                .ad("}").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return m.isPrimitiveMethodReturnType()
+                ? out -> out.ad("this.").ad(m.getMethodName()).ad("$init = false;").nl()
+                : m.isNullable()
+                ? out -> out
+                .ad("this.").ad(m.getMethodName()).ad("$init = false;").nl()
+                .ad("this.").ad(m.getMethodName()).ad(" = null;").nl()
+                : out -> out.ad("this.").ad(m.getMethodName()).ad(" = null;").nl();
+    }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+import lombok.RequiredArgsConstructor;
+
+import java.util.function.Consumer;
+
+@RequiredArgsConstructor
+final class PooledCachingVisitor implements MethodVisitor {
+
+    private final int maxSize;
+
+    @Override
+    public Consumer<Output> visitMethod(Method m) {
+        return MethodVisitor.super.visitMethod(m).andThen(visitApply(m));
+    }
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return out -> out
+                .nl()
+                .ad(prefix).ad("final java.util.concurrent.atomic.AtomicReferenceArray<").ad(m.getLocalMethodCacheType()).ad("> ").ad(m.getMethodName()).ad(" = new java.util.concurrent.atomic.AtomicReferenceArray<>(").ad(0 < maxSize ? Integer.toString(maxSize) : "java.lang.Runtime.getRuntime().availableProcessors()").ad(");").nl()
+                .ad(prefix).ad("final java.util.concurrent.Semaphore ").ad(m.getMethodName()).ad("$permits = new java.util.concurrent.Semaphore(this.").ad(m.getMethodName()).ad(".length());").nl();
+    }
+
+    // The getter never borrows from the pool: Its callers, e.g. dependent components, would never return the instance,
+    // so it builds a new one without blocking.
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return out -> out.ad("return ");
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return out -> out.ad(";").nl();
+    }
+
+    // Borrows an idle instance or builds a new one, applies the function to it and returns it to the pool.
+    // Blocks while the maximum number of instances is in use.
+    // As the instance never escapes this method, it can't be returned twice or replaced by a foreign instance.
+    private Consumer<Output> visitApply(Method m) {
+        return out -> out
+                .nl()
+                .ad("public <R> R ").ad(m.getMethodName()).ad("$apply(final java.util.function.Function<? super ").ad(m.getLocalMethodCacheType()).ad(", ? extends R> function) ").ad(m.getMethodThrowsList()).ad("{").nl()
+                .ad("    this.").ad(m.getMethodName()).ad("$permits.acquireUninterruptibly();").nl()
+                .ad("    try {").nl()
+                .ad("        ").ad(m.getLocalMethodCacheType()).ad(" value = null;").nl()
+                .ad("        for (int i = 0; null == value && i < this.").ad(m.getMethodName()).ad(".length(); i++) {").nl()
+                .ad("            if (null != this.").ad(m.getMethodName()).ad(".get(i)) {").nl()
+                .ad("                value = this.").ad(m.getMethodName()).ad(".getAndSet(i, null);").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("        if (null == value) {").nl()
+                .ad("            value = ").ad(m.getDependencyCall()).ad(";").nl()
+                .ad("        }").nl()
+                .ad("        try {").nl()
+                .ad("            return function.apply(value);").nl()
+                .ad("        } finally {").nl()
+                .ad("            // There is always an empty slot because there are no more instances in use than permits:").nl()
+                .ad("            for (int i = 0; i < this.").ad(m.getMethodName()).ad(".length(); i++) {").nl()
+                .ad("                if (this.").ad(m.getMethodName()).ad(".compareAndSet(i, null, value)) {").nl()
+                .ad("                    break;").nl()
+                .ad("                }").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$permits.release();").nl()
+                .ad("    }").nl()
+                .ad("}").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return visitNullableField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return visitNullableMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return visitNullableMethodEnd(m);
+    }
+
+    @Override
+    public Consumer<Output> visitSetter(Method m) {
+        return NOOP;
+    }
+
+    // Drops the idle instances. Instances in use get pooled again when their function returns.
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> out
+                .ad("for (int i = 0; i < this.").ad(m.getMethodName()).ad(".length(); i++) {").nl()
+                .ad("    this.").ad(m.getMethodName()).ad(".set(i, null);").nl()
+                .ad("}").nl();
+    }
+}
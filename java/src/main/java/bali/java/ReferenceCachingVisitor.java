@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+import lombok.RequiredArgsConstructor;
+
+import java.util.function.Consumer;
+
+@RequiredArgsConstructor
+final class ReferenceCachingVisitor implements MethodVisitor {
+
+    private final Class<?> referenceClass;
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return visitNonNullField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return visitNonNullMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return out -> out
+                .out(3)
+                .ad(";").nl()
+                .ad("            this.").ad(m.getMethodName()).ad(" = null != value ? new ").ad(referenceClass.getName()).ad("<>(value) : null;").nl()
+                .ad("        }").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .ad("return value;").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableSetterBody(Method m) {
+        return visitSetterBody(m, "null != value ? new " + referenceClass.getName() + "<>(value) : null");
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return out -> {
+            out
+                    .nl()
+                    .ad(prefix).ad("volatile ").ad(referenceType(m)).ad(" ").ad(m.getMethodName()).ad(";").nl();
+            visitLockField(m, prefix).accept(out);
+        };
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return out -> out
+                .ad(referenceType(m)).ad(" reference;").nl()
+                .ad(m.getLocalMethodCacheType()).ad(" value;").nl()
+                .ad("if (null == (reference = this.").ad(m.getMethodName()).ad(") || null == (value = reference.get())) {").nl()
+                .ad("    this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("    try {").nl()
+                .ad("        if (null == (reference = this.").ad(m.getMethodName()).ad(") || null == (value = reference.get())) {").nl()
+                .ad("            value = ")
+                .in(3);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return out -> out
+                .out(3)
+                .ad(";").nl()
+                .ad("            this.").ad(m.getMethodName()).ad(" = new ").ad(referenceClass.getName()).ad("<>(value);").nl()
+                .ad("        }").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .ad("return value;").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullSetterBody(Method m) {
+        return visitSetterBody(m, "new " + referenceClass.getName() + "<>(value)");
+    }
+
+    private Consumer<Output> visitSetterBody(Method m, String reference) {
+        return out -> out
+                .ad("    this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("    try {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad(" = ").ad(reference).ad(";").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                .ad("    }").nl();
+    }
+
+    private String referenceType(Method m) {
+        return referenceClass.getName() + "<" + m.getLocalMethodCacheType() + ">";
+    }
+
+    @Override
+    public Consumer<Output> visitEvict(Method m, String value) {
+        return out -> out
+                .ad("this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("try {").nl()
+                .ad("    final ").ad(referenceType(m)).ad(" reference = this.").ad(m.getMethodName()).ad(";").nl()
+                .ad("    if (null != reference && reference.get() == ").ad(value).ad(") {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad(" = null;").nl()
+                .ad("    }").nl()
+                .ad("} finally {").nl()
+                .ad("    this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                .ad("}").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> out
+                .ad("this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("try {").nl()
+                .ad("    this.").ad(m.getMethodName()).ad(" = null;").nl()
+                .ad("} finally {").nl()
+                .ad("    this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                .ad("}").nl();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+import bali.java.AnnotationProcessor.ModuleInterface.ModuleMethod;
+
+import java.util.function.Consumer;
+
+final class ScopedCachingVisitor implements MethodVisitor {
+
+    @Override
+    public Consumer<Output> visitMethodAnnotations(Method m) {
+        return out -> out.ad("@SuppressWarnings(\"unchecked\")").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return NOOP;
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return out -> out
+                .ad("final java.lang.Object[] scope = this.scope$.get();").nl()
+                .ad("java.lang.Object value;").nl()
+                .ad("if (null == scope || null == (value = scope[").ad(scopeIndex(m)).ad("])) {").nl()
+                .ad("    final ").ad(m.getLocalMethodCacheType()).ad(" result = ")
+                .in();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return out -> out
+                .out()
+                .ad(";").nl()
+                .ad("    if (null != scope) {").nl()
+                .ad("        scope[").ad(scopeIndex(m)).ad("] = null != result ? result : scope;").nl()
+                .ad("    }").nl()
+                .ad("    return result;").nl()
+                .ad("}").nl()
+                .ad("return scope != value ? (").ad(m.getLocalMethodCacheType()).ad(") value : null;").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableSetterBody(Method m) {
+        return visitSetterBody(m, "null != value ? value : scope");
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return visitNullableField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return visitNullableMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return visitNullableMethodEnd(m);
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveSetterBody(Method m) {
+        return visitSetterBody(m, "value");
+    }
+
+    private Consumer<Output> visitSetterBody(Method m, String value) {
+        return out -> out
+                .ad("    final java.lang.Object[] scope = this.scope$.get();").nl()
+                .ad("    if (null == scope) {").nl()
+                .ad("        throw new java.lang.IllegalStateException(\"There is no active scope.\");").nl()
+                .ad("    }").nl()
+                .ad("    scope[").ad(scopeIndex(m)).ad("] = ").ad(value).ad(";").nl();
+    }
+
+    private static String scopeIndex(Method m) {
+        return Integer.toString(((ModuleMethod) m).getScopeIndex());
+    }
+
+    // Only clears the value in the current scope, if any.
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> out
+                .ad("if (null != this.scope$.get()) {").nl()
+                .ad("    this.scope$.get()[").ad(scopeIndex(m)).ad("] = null;").nl()
+                .ad("}").nl();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+import bali.java.AnnotationProcessor.ModuleInterface.ModuleMethod;
+
+import java.util.function.Consumer;
+
+// Caches the return value in a static final field of a holder class, which gets initialized on demand with a new
+// module instance.
+// After the initialization, the JIT compiler can treat the field as a constant.
+// The price is that a failure is permanent: If the dependency call fails, then the call throws an
+// ExceptionInInitializerError and every subsequent call throws a NoClassDefFoundError.
+// As there is no instance field to overwrite, the companion class doesn't implement a setter for this method.
+final class StaticCachingVisitor implements MethodVisitor {
+
+    @Override
+    public Consumer<Output> visitMethod(Method m) {
+        return visitMethodBegin0(m)
+                .andThen(out -> out.ad("return ").ad(m.getMethodName()).ad("$Holder.VALUE;").nl())
+                .andThen(visitMethodEnd0(m))
+                .andThen(visitHolder((ModuleMethod) m));
+    }
+
+    private Consumer<Output> visitHolder(ModuleMethod m) {
+        return out -> out
+                .nl()
+                .ad("private ").ad(m.getLocalMethodReturnType()).ad(" ").ad(m.getMethodName()).ad("$make() {").nl()
+                .ad("    return ").ad(m.getDependencyCall()).ad(";").nl()
+                .ad("}").nl()
+                .nl()
+                .ad("private static final class ").ad(m.getMethodName()).ad("$Holder {").nl()
+                .nl()
+                .ad("    static final ").ad(m.getLocalMethodReturnType()).ad(" VALUE = new ").ad(m.getCompanionClassName()).ad("().").ad(m.getMethodName()).ad("$make();").nl()
+                .ad("}").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return NOOP;
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return NOOP;
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return NOOP;
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return NOOP;
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return NOOP;
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return NOOP;
+    }
+}
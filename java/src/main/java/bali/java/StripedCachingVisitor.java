@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+
+import java.util.function.Consumer;
+
+// Caches one replica of the value per thread, up to about the number of available processors, see Stripes$.
+// A thread which gets no replica builds a new value on each call, so a replica is never shared by two live threads.
+final class StripedCachingVisitor implements MethodVisitor {
+
+    @Override
+    public Consumer<Output> visitMethodAnnotations(Method m) {
+        return out -> out.ad("@SuppressWarnings(\"unchecked\")").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return out -> out
+                .nl()
+                .ad(prefix).ad("final Stripes$ ").ad(m.getMethodName()).ad(" = new Stripes$();").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return out -> out
+                .ad("final Replica$ replica = this.").ad(m.getMethodName()).ad(".claim();").nl()
+                .ad("java.lang.Object value;").nl()
+                .ad("if (null == replica || null == (value = replica.value)) {").nl()
+                .ad("    final ").ad(m.getLocalMethodCacheType()).ad(" result = ")
+                .in();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return out -> out
+                .out()
+                .ad(";").nl()
+                .ad("    if (null != replica) {").nl()
+                .ad("        replica.value = null != result ? result : NULL$;").nl()
+                .ad("    }").nl()
+                .ad("    return result;").nl()
+                .ad("}").nl()
+                .ad("return NULL$ != value ? (").ad(m.getLocalMethodCacheType()).ad(") value : null;").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableSetterBody(Method m) {
+        return visitSetterBody(m, "null != value ? value : NULL$");
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return visitNullableField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return out -> out
+                .ad("final Replica$ replica = this.").ad(m.getMethodName()).ad(".claim();").nl()
+                .ad(m.getLocalMethodCacheType()).ad(" value;").nl()
+                .ad("if (null == replica || null == (value = (").ad(m.getLocalMethodCacheType()).ad(") replica.value)) {").nl()
+                .ad("    value = ")
+                .in();
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return out -> out
+                .out()
+                .ad(";").nl()
+                .ad("    if (null != replica) {").nl()
+                .ad("        replica.value = value;").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .ad("return value;").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullSetterBody(Method m) {
+        return visitSetterBody(m, "value");
+    }
+
+    // Sets the replica of the calling thread only, like a thread local.
+    private Consumer<Output> visitSetterBody(Method m, String value) {
+        return out -> out
+                .ad("    final Replica$ replica = this.").ad(m.getMethodName()).ad(".claim();").nl()
+                .ad("    if (null != replica) {").nl()
+                .ad("        replica.value = ").ad(value).ad(";").nl()
+                .ad("    }").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> out
+                .ad("this.").ad(m.getMethodName()).ad(".clear();").nl();
+    }
+}
@@ -19,21 +19,28 @@ import bali.java.AnnotationProcessor.ModuleInterface.Method;
 
 import java.util.function.Consumer;
 
+// A null value is cached as NULL$ rather than as the thread local itself: The value of an entry in the map of a thread
+// must not reference its weakly referenced key, or else the entry would never become stale.
 final class ThreadLocalCachingVisitor implements MethodVisitor {
 
+    @Override
+    public Consumer<Output> visitMethodAnnotations(Method m) {
+        return m.isNullable() ? out -> out.ad("@SuppressWarnings(\"unchecked\")").nl() : NOOP;
+    }
+
     @Override
     public Consumer<Output> visitNullableField(Method m, String prefix) {
         return out -> out
                 .nl()
-                .ad(prefix).ad("final java.lang.ThreadLocal<java.util.function.Supplier<").ad(m.getLocalMethodCacheType()).ad(">> ").ad(m.getMethodName()).ad(" = new java.lang.ThreadLocal<>();").nl();
+                .ad(prefix).ad("final java.lang.ThreadLocal<java.lang.Object> ").ad(m.getMethodName()).ad(" = new java.lang.ThreadLocal<>();").nl();
     }
 
     @Override
     public Consumer<Output> visitNullableMethodBegin(Method m) {
         return out -> out
-                .ad("java.util.function.Supplier<").ad(m.getLocalMethodCacheType()).ad("> supplier;").nl()
-                .ad("if (null == (supplier = this.").ad(m.getMethodName()).ad(".get())) {").nl()
-                .ad("    final ").ad(m.getLocalMethodCacheType()).ad(" value = ")
+                .ad("java.lang.Object value;").nl()
+                .ad("if (null == (value = this.").ad(m.getMethodName()).ad(".get())) {").nl()
+                .ad("    final ").ad(m.getLocalMethodCacheType()).ad(" result = ")
                 .in();
     }
 
@@ -42,15 +49,16 @@ final class ThreadLocalCachingVisitor implements MethodVisitor {
         return out -> out
                 .out()
                 .ad(";").nl()
-                .ad("    this.").ad(m.getMethodName()).ad(".set(supplier = () -> value);").nl()
+                .ad("    this.").ad(m.getMethodName()).ad(".set(null != result ? result : NULL$);").nl()
+                .ad("    return result;").nl()
                 .ad("}").nl()
-                .ad("return supplier.get();").nl();
+                .ad("return NULL$ != value ? (").ad(m.getLocalMethodCacheType()).ad(") value : null;").nl();
     }
 
     @Override
     public Consumer<Output> visitNullableSetterBody(Method m) {
         return out -> out
-                .ad("    this.").ad(m.getMethodName()).ad(".set(() -> value);").nl();
+                .ad("    this.").ad(m.getMethodName()).ad(".set(null != value ? value : NULL$);").nl();
     }
 
     @Override
@@ -83,4 +91,46 @@ final class ThreadLocalCachingVisitor implements MethodVisitor {
         return out -> out
                 .ad("    this.").ad(m.getMethodName()).ad(".set(value);").nl();
     }
+
+    @Override
+    public Consumer<Output> visitPrimitiveField(Method m, String prefix) {
+        return out -> out
+                .nl()
+                .ad(prefix).ad("final java.lang.ThreadLocal<").ad(m.getLocalMethodReturnType()).ad("[]> ").ad(m.getMethodName()).ad(" = new java.lang.ThreadLocal<>();").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveMethodBegin(Method m) {
+        return out -> out
+                .ad(m.getLocalMethodReturnType()).ad("[] holder;").nl()
+                .ad("if (null == (holder = this.").ad(m.getMethodName()).ad(".get())) {").nl()
+                .ad("    this.").ad(m.getMethodName()).ad(".set(holder = new ").ad(m.getLocalMethodReturnType()).ad("[] { ")
+                .in();
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveMethodEnd(Method m) {
+        return out -> out
+                .out()
+                .ad(" });").nl()
+                .ad("}").nl()
+                .ad("return holder[0];").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveSetterBody(Method m) {
+        return out -> out
+                .ad("    final ").ad(m.getLocalMethodReturnType()).ad("[] holder = this.").ad(m.getMethodName()).ad(".get();").nl()
+                .ad("    if (null != holder) {").nl()
+                .ad("        holder[0] = value;").nl()
+                .ad("    } else {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad(".set(new ").ad(m.getLocalMethodReturnType()).ad("[] { value });").nl()
+                .ad("    }").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> out
+                .ad("this.").ad(m.getMethodName()).ad(".remove();").nl();
+    }
 }
@@ -16,83 +16,376 @@
 package bali.java;
 
 import bali.java.AnnotationProcessor.ModuleInterface.Method;
+import lombok.RequiredArgsConstructor;
 
 import java.util.function.Consumer;
 
+@RequiredArgsConstructor
 final class ThreadSafeCachingVisitor implements MethodVisitor {
 
+    // The maximum number of times to double the backoff after consecutive failures.
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private final long backoffNanos;
+
+    // Whether to access the cache field with acquire/release semantics through a VarHandle instead of volatile
+    // semantics. Requires Java 9 for VarHandles and Java 16 for static members in the local classes of components.
+    private final boolean varHandles;
+
+    @Override
+    public Consumer<Output> visitMethodAnnotations(Method m) {
+        return m.isNullable() ? out -> out.ad("@SuppressWarnings(\"unchecked\")").nl() : NOOP;
+    }
+
+    // A null value is represented by the lock, which never escapes the module, so that clearing the cache can simply
+    // null the field without racing with readers which have already checked a separate flag.
     @Override
     public Consumer<Output> visitNullableField(Method m, String prefix) {
-        return out -> out
-                .nl()
-                .ad(prefix).ad("volatile java.util.function.Supplier<").ad(m.getLocalMethodCacheType()).ad("> ").ad(m.getMethodName()).ad(";").nl();
+        return out -> {
+            out
+                    .nl()
+                    .ad(prefix).ad(varHandles ? "" : "volatile ").ad("java.lang.Object ").ad(m.getMethodName()).ad(";").nl();
+            visitLockField(m, prefix).accept(out);
+            visitBackoffFields(m, prefix).accept(out);
+            visitVarHandleField(m.getMethodName().toString(), "java.lang.Object").accept(out);
+        };
     }
 
     @Override
     public Consumer<Output> visitNullableMethodBegin(Method m) {
-        return out -> out
-                .ad("java.util.function.Supplier<").ad(m.getLocalMethodCacheType()).ad("> supplier;").nl()
-                .ad("if (null == (supplier = this.").ad(m.getMethodName()).ad(")) {").nl()
-                .ad("    synchronized (this) {").nl()
-                .ad("        if (null == (supplier = this.").ad(m.getMethodName()).ad(")) {").nl()
-                .ad("            final ").ad(m.getLocalMethodCacheType()).ad(" value = ")
-                .in(3);
+        return visitLockedMethodBegin(m,
+                varHandles
+                        ? "null == (value = " + m.getMethodName() + "$handle.getAcquire(this))"
+                        : "null == (value = this." + m.getMethodName() + ")",
+                "null == (value = this." + m.getMethodName() + ")",
+                "final " + m.getLocalMethodCacheType() + " result = ",
+                out -> out.ad("java.lang.Object value;").nl());
     }
 
     @Override
     public Consumer<Output> visitNullableMethodEnd(Method m) {
-        return out -> out
-                .out(3)
-                .ad(";").nl()
-                .ad("            this.").ad(m.getMethodName()).ad(" = supplier = () -> value;").nl()
-                .ad("        }").nl()
-                .ad("    }").nl()
-                .ad("}").nl()
-                .ad("return supplier.get();").nl();
+        return visitLockedMethodEnd(m,
+                "",
+                out -> out.ad(varHandles
+                        ? m.getMethodName() + "$handle.setRelease(this, value = null != result ? result : this." + m.getMethodName() + "$lock)"
+                        : "this." + m.getMethodName() + " = value = null != result ? result : this." + m.getMethodName() + "$lock").ad(";").nl(),
+                "this." + m.getMethodName() + "$lock != value ? (" + m.getLocalMethodCacheType() + ") value : null");
     }
 
     @Override
     public Consumer<Output> visitNullableSetterBody(Method m) {
         return out -> out
-                .ad("    synchronized(this) {").nl()
-                .ad("        this.").ad(m.getMethodName()).ad(" = () -> value;").nl()
+                .ad("    final java.lang.Object cached = null != value ? value : this.").ad(m.getMethodName()).ad("$lock;").nl()
+                .ad("    this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("    try {").nl()
+                .ad("        ").ad(varHandles ? m.getMethodName() + "$handle.setRelease(this, cached)" : "this." + m.getMethodName() + " = cached").ad(";").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
                 .ad("    }").nl();
     }
 
     @Override
     public Consumer<Output> visitNonNullField(Method m, String prefix) {
-        return out -> out
-                .nl()
-                .ad(prefix).ad("volatile ").ad(m.getLocalMethodCacheType()).ad(" ").ad(m.getMethodName()).ad(";").nl();
+        return out -> {
+            out
+                    .nl()
+                    .ad(prefix).ad(varHandles ? "" : "volatile ").ad(m.getLocalMethodCacheType()).ad(" ").ad(m.getMethodName()).ad(";").nl();
+            visitLockField(m, prefix).accept(out);
+            visitBackoffFields(m, prefix).accept(out);
+            visitVarHandleField(m.getMethodName().toString(), m.getErasedMethodCacheType()).accept(out);
+        };
     }
 
     @Override
     public Consumer<Output> visitNonNullMethodBegin(Method m) {
-        return out -> out
-                .ad(m.getLocalMethodCacheType()).ad(" value;").nl()
-                .ad("if (null == (value = this.").ad(m.getMethodName()).ad(")) {").nl()
-                .ad("    synchronized (this) {").nl()
-                .ad("        if (null == (value = this.").ad(m.getMethodName()).ad(")) {").nl()
-                .ad("            this.").ad(m.getMethodName()).ad(" = value = ")
-                .in(3);
+        return visitLockedMethodBegin(m,
+                varHandles
+                        ? "null == (value = (" + m.getLocalMethodCacheType() + ") " + m.getMethodName() + "$handle.getAcquire(this))"
+                        : "null == (value = this." + m.getMethodName() + ")",
+                "null == (value = this." + m.getMethodName() + ")",
+                varHandles
+                        ? m.getMethodName() + "$handle.setRelease(this, value = "
+                        : "this." + m.getMethodName() + " = value = ",
+                out -> out.ad(m.getLocalMethodCacheType()).ad(" value;").nl());
     }
 
     @Override
     public Consumer<Output> visitNonNullMethodEnd(Method m) {
-        return out -> out
-                .out(3)
-                .ad(";").nl()
-                .ad("        }").nl()
-                .ad("    }").nl()
-                .ad("}").nl()
-                .ad("return value;").nl();
+        return visitLockedMethodEnd(m, varHandles ? ")" : "", NOOP, "value");
     }
 
     @Override
     public Consumer<Output> visitNonNullSetterBody(Method m) {
         return out -> out
-                .ad("    synchronized(this) {").nl()
-                .ad("        this.").ad(m.getMethodName()).ad(" = value;").nl()
+                .ad("    this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("    try {").nl()
+                .ad("        ").ad(varHandles ? m.getMethodName() + "$handle.setRelease(this, value)" : "this." + m.getMethodName() + " = value").ad(";").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                .ad("    }").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveField(Method m, String prefix) {
+        return visitFlaggedField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveMethodBegin(Method m) {
+        return visitFlaggedMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveMethodEnd(Method m) {
+        return visitFlaggedMethodEnd(m);
+    }
+
+    @Override
+    public Consumer<Output> visitPrimitiveSetterBody(Method m) {
+        return visitFlaggedSetterBody(m);
+    }
+
+    // A primitive value needs a separate flag.
+    // The value field needs volatile or acquire/release semantics, too: Otherwise, a setter which overwrites the value
+    // after initialization would not happen-before the readers which have already observed the flag, and a 64-bit
+    // primitive value could tear.
+    private Consumer<Output> visitFlaggedField(Method m, String prefix) {
+        return out -> {
+            out
+                    .nl()
+                    .ad(prefix).ad(varHandles ? "" : "volatile ").ad(m.getLocalMethodReturnType()).ad(" ").ad(m.getMethodName()).ad(";").nl()
+                    .ad(prefix).ad(varHandles ? "" : "volatile ").ad("boolean ").ad(m.getMethodName()).ad("$init;").nl();
+            visitLockField(m, prefix).accept(out);
+            visitBackoffFields(m, prefix).accept(out);
+            visitVarHandleField(m.getMethodName().toString(), m.getLocalMethodReturnType()).accept(out);
+            visitVarHandleField(m.getMethodName() + "$init", "boolean").accept(out);
+        };
+    }
+
+    private Consumer<Output> visitFlaggedMethodBegin(Method m) {
+        return visitLockedMethodBegin(m,
+                varHandles
+                        ? "!(boolean) " + m.getMethodName() + "$init$handle.getAcquire(this)"
+                        : "!this." + m.getMethodName() + "$init",
+                "!this." + m.getMethodName() + "$init",
+                varHandles
+                        ? m.getMethodName() + "$handle.setRelease(this, "
+                        : "this." + m.getMethodName() + " = ",
+                NOOP);
+    }
+
+    private Consumer<Output> visitFlaggedMethodEnd(Method m) {
+        return visitLockedMethodEnd(m,
+                varHandles ? ")" : "",
+                out -> out.ad(initialized(m)).ad(";").nl(),
+                varHandles
+                        ? "(" + m.getLocalMethodReturnType() + ") " + m.getMethodName() + "$handle.getAcquire(this)"
+                        : "this." + m.getMethodName());
+    }
+
+    private Consumer<Output> visitFlaggedSetterBody(Method m) {
+        return out -> out
+                .ad("    this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("    try {").nl()
+                .ad("        ").ad(varHandles ? m.getMethodName() + "$handle.setRelease(this, value)" : "this." + m.getMethodName() + " = value").ad(";").nl()
+                .ad("        ").ad(initialized(m)).ad(";").nl()
+                .ad("    } finally {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
                 .ad("    }").nl();
     }
+
+    private String initialized(Method m) {
+        return varHandles
+                ? m.getMethodName() + "$init$handle.setRelease(this, true)"
+                : "this." + m.getMethodName() + "$init = true";
+    }
+
+    private Consumer<Output> visitVarHandleField(String field, String type) {
+        return varHandles
+                ? out -> out
+                .nl()
+                .ad("private static final java.lang.invoke.VarHandle ").ad(field).ad("$handle;").nl()
+                .nl()
+                .ad("static {").nl()
+                .ad("    try {").nl()
+                .ad("        final java.lang.invoke.MethodHandles.Lookup lookup = java.lang.invoke.MethodHandles.lookup();").nl()
+                .ad("        ").ad(field).ad("$handle = lookup.findVarHandle(lookup.lookupClass(), \"").ad(field).ad("\", ").ad(type).ad(".class);").nl()
+                .ad("    } catch (final java.lang.ReflectiveOperationException e) {").nl()
+                .ad("        throw new java.lang.ExceptionInInitializerError(e);").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                : NOOP;
+    }
+
+    private Consumer<Output> visitLockedMethodBegin(Method m, String absentWithoutLock, String absent, String assignment, Consumer<Output> declaration) {
+        return out -> {
+            declaration.accept(out);
+            out.ad("if (").ad(absentWithoutLock).ad(") {").nl().in();
+            visitBackoffCheck(m, "failure$").accept(out);
+            out
+                    .ad("this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                    .ad("try {").nl()
+                    .ad("    if (").ad(absent).ad(") {").nl()
+                    .in(2);
+            if (0 < backoffNanos) {
+                visitBackoffCheck(m, "lastFailure$").accept(out);
+                out.ad("try {").nl().in();
+            }
+            out.ad(assignment);
+        };
+    }
+
+    private Consumer<Output> visitLockedMethodEnd(Method m, String closing, Consumer<Output> initialized, String result) {
+        return out -> {
+            out.ad(closing).ad(";").nl();
+            initialized.accept(out);
+            if (0 < backoffNanos) {
+                out
+                        .out()
+                        .ad("} catch (final java.lang.Throwable e$) {").nl()
+                        .ad("    this.").ad(m.getMethodName()).ad("$retry = ").ad(m.getNanoTimeCall()).ad(" + (").ad(Long.toString(backoffNanos)).ad("L << java.lang.Math.min(this.").ad(m.getMethodName()).ad("$failures++, ").ad(Integer.toString(MAX_BACKOFF_SHIFT)).ad("));").nl()
+                        .ad("    this.").ad(m.getMethodName()).ad("$failure = e$;").nl()
+                        .ad("    throw e$;").nl()
+                        .ad("}").nl()
+                        .ad("this.").ad(m.getMethodName()).ad("$failure = null;").nl()
+                        .ad("this.").ad(m.getMethodName()).ad("$failures = 0;").nl();
+            }
+            out
+                    .out(2)
+                    .ad("    }").nl()
+                    .ad("} finally {").nl()
+                    .ad("    this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                    .ad("}").nl()
+                    .out()
+                    .ad("}").nl()
+                    .ad("return ").ad(result).ad(";").nl();
+        };
+    }
+
+    // The retry time is read without holding the lock, so it needs to be volatile, too.
+    private Consumer<Output> visitBackoffFields(Method m, String prefix) {
+        return 0 < backoffNanos
+                ? out -> out
+                .ad(prefix).ad("volatile java.lang.Throwable ").ad(m.getMethodName()).ad("$failure;").nl()
+                .ad(prefix).ad("volatile long ").ad(m.getMethodName()).ad("$retry;").nl()
+                .ad(prefix).ad("int ").ad(m.getMethodName()).ad("$failures;").nl()
+                : NOOP;
+    }
+
+    // Throws a new exception with the last failure as its cause without building the value again until the backoff has
+    // elapsed.
+    // The last failure is not rethrown because it would be shared by all callers, so that its stack trace wouldn't tell
+    // where they called the method and any suppressed exceptions added by one of them would show up for all of them.
+    private Consumer<Output> visitBackoffCheck(Method m, String failure) {
+        return 0 < backoffNanos
+                ? out -> out
+                .ad("final java.lang.Throwable ").ad(failure).ad(" = this.").ad(m.getMethodName()).ad("$failure;").nl()
+                .ad("if (null != ").ad(failure).ad(" && ").ad(m.getNanoTimeCall()).ad(" - this.").ad(m.getMethodName()).ad("$retry < 0) {").nl()
+                .ad("    throw new java.lang.IllegalStateException(\"Backing off after the last call failed.\", ").ad(failure).ad(");").nl()
+                .ad("}").nl()
+                : NOOP;
+    }
+
+    // The module instance is either the reconfigured one, which has not been published yet, or holds the lock.
+    @Override
+    public Consumer<Output> visitPresent(Method m, String module) {
+        return m.isPrimitiveMethodReturnType()
+                ? out -> out.ad(module).ad(".").ad(m.getMethodName()).ad("$init")
+                : out -> out.ad("null != ").ad(module).ad(".").ad(m.getMethodName());
+    }
+
+    @Override
+    public Consumer<Output> visitTransfer(Method m, String from, String to) {
+        return visitLocked(m, from, out -> {
+            if (m.isPrimitiveMethodReturnType()) {
+                out
+                        .ad("    if (").ad(from).ad(".").ad(m.getMethodName()).ad("$init) {").nl()
+                        .ad("        ").ad(to).ad(".").ad(m.getMethodName()).ad(" = ").ad(from).ad(".").ad(m.getMethodName()).ad(";").nl()
+                        .ad("        ").ad(to).ad(".").ad(m.getMethodName()).ad("$init = true;").nl()
+                        .ad("    }").nl();
+            } else if (m.isNullable()) {
+                // A null value is represented by the lock of the module, so it needs to be replaced with the other one.
+                out
+                        .ad("    final java.lang.Object value = ").ad(from).ad(".").ad(m.getMethodName()).ad(";").nl()
+                        .ad("    ").ad(to).ad(".").ad(m.getMethodName()).ad(" = ").ad(from).ad(".").ad(m.getMethodName()).ad("$lock != value ? value : ").ad(to).ad(".").ad(m.getMethodName()).ad("$lock;").nl();
+            } else {
+                out.ad("    ").ad(to).ad(".").ad(m.getMethodName()).ad(" = ").ad(from).ad(".").ad(m.getMethodName()).ad(";").nl();
+            }
+        });
+    }
+
+    // Doesn't call the consumer while holding the lock.
+    @Override
+    public Consumer<Output> visitDisplace(Method m, String module, String consumer) {
+        return m.isPrimitiveMethodReturnType()
+                ? NOOP
+                : out -> {
+            out
+                    .ad("{").nl()
+                    .in()
+                    .ad("final java.lang.Object value;").nl();
+            visitLocked(m, module, o -> o
+                    .ad("    value = ").ad(module).ad(".").ad(m.getMethodName()).ad(";").nl())
+                    .accept(out);
+            out
+                    .ad("if (null != value").ad(m.isNullable() ? " && " + module + "." + m.getMethodName() + "$lock != value" : "").ad(") {").nl()
+                    .ad("    ").ad(consumer).ad(".accept(value);").nl()
+                    .ad("}").nl()
+                    .out()
+                    .ad("}").nl();
+        };
+    }
+
+    @Override
+    public Consumer<Output> visitEvict(Method m, String value) {
+        return visitLocked(m, "this", out -> {
+            out
+                    .ad("    if (this.").ad(m.getMethodName()).ad(" == ").ad(value).ad(") {").nl()
+                    .in();
+            visitClearBody(m).accept(out);
+            out
+                    .out()
+                    .ad("    }").nl();
+        });
+    }
+
+    // All writes to the cache happen while holding the lock, so plain reads are fine then.
+    private static Consumer<Output> visitLocked(Method m, String module, Consumer<Output> body) {
+        return out -> {
+            out
+                    .ad(module).ad(".").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                    .ad("try {").nl();
+            body.accept(out);
+            out
+                    .ad("} finally {").nl()
+                    .ad("    ").ad(module).ad(".").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                    .ad("}").nl();
+        };
+    }
+
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return visitLocked(m, "this", visitClearBody(m));
+    }
+
+    private Consumer<Output> visitClearBody(Method m) {
+        return out -> {
+            // A primitive value doesn't retain anything, so only its flag gets cleared: Zeroing the value, too, would
+            // allow a reader which has already checked the flag to return zero.
+            if (m.isPrimitiveMethodReturnType()) {
+                out.ad("    ").ad(varHandles
+                        ? m.getMethodName() + "$init$handle.setRelease(this, false)"
+                        : "this." + m.getMethodName() + "$init = false").ad(";").nl();
+            } else {
+                out.ad("    ").ad(varHandles
+                        ? m.getMethodName() + "$handle.setRelease(this, (" + (m.isNullable() ? "java.lang.Object" : m.getLocalMethodCacheType()) + ") null)"
+                        : "this." + m.getMethodName() + " = null").ad(";").nl();
+            }
+            if (0 < backoffNanos) {
+                out
+                        .ad("    this.").ad(m.getMethodName()).ad("$failure = null;").nl()
+                        .ad("    this.").ad(m.getMethodName()).ad("$failures = 0;").nl();
+            }
+        };
+    }
 }
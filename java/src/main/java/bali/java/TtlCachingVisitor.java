@@ -0,0 +1,217 @@
+/*
+ * Copyright © 2021 Schlichtherle IT Services
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bali.java;
+
+import bali.java.AnnotationProcessor.ModuleInterface.Method;
+import bali.java.AnnotationProcessor.ModuleInterface.ModuleMethod;
+import lombok.RequiredArgsConstructor;
+
+import java.util.function.Consumer;
+
+@RequiredArgsConstructor
+final class TtlCachingVisitor implements MethodVisitor {
+
+    private final long ttlNanos;
+
+    private final boolean refreshAhead;
+
+    @Override
+    public Consumer<Output> visitMethod(Method m) {
+        return visitField(m, "private ")
+                .andThen(visitMethodBegin0(m))
+                .andThen(visitCallStats(m))
+                .andThen(refreshAhead ? visitRefreshAheadMethodBody(m) : visitMethodBody(m))
+                .andThen(visitMethodEnd0(m))
+                .andThen(visitReloadBegin0(m))
+                .andThen(visitNullableMethodBegin(m))
+                .andThen(out -> out.ad(m.getDependencyCall()))
+                .andThen(visitNullableMethodEnd(m))
+                .andThen(visitMethodEnd0(m))
+                .andThen(visitDeadline(m))
+                .andThen(visitSetter(m));
+    }
+
+    @Override
+    public Consumer<Output> visitNullableField(Method m, String prefix) {
+        return out -> {
+            out
+                    .nl()
+                    .ad(prefix).ad("volatile ").ad(m.getLocalMethodReturnType()).ad(" ").ad(m.getMethodName()).ad(";").nl()
+                    .ad(prefix).ad("volatile long ").ad(m.getMethodName()).ad("$expiry;").nl();
+            visitLockField(m, prefix).accept(out);
+            if (refreshAhead) {
+                out
+                        .ad(prefix).ad("final java.util.concurrent.atomic.AtomicBoolean ").ad(m.getMethodName()).ad("$refreshing = new java.util.concurrent.atomic.AtomicBoolean();").nl()
+                        .ad(prefix).ad("volatile java.lang.Throwable ").ad(m.getMethodName()).ad("$failure;").nl();
+            }
+        };
+    }
+
+    private Consumer<Output> visitMethodBody(Method m) {
+        return out -> out
+                .ad("final long expiry = this.").ad(m.getMethodName()).ad("$expiry;").nl()
+                .ad("if (0 == expiry || expiry - ").ad(m.getNanoTimeCall()).ad(" <= 0) {").nl()
+                .ad("    return this.").ad(m.getMethodName()).ad("$reload(expiry);").nl()
+                .ad("}").nl()
+                .ad("return this.").ad(m.getMethodName()).ad(";").nl();
+    }
+
+    // A failed refresh keeps the stale value, but only until it's stale for another time-to-live: Then the value gets
+    // reloaded synchronously, so that the failure propagates to the caller rather than serving an arbitrarily old value.
+    // The last failure to refresh, including a rejected execution, gets added to the exception of the synchronous reload
+    // as a suppressed exception.
+    // The refresh runs on the executor returned by the executor$ method of the module, if any, or else on the common
+    // fork-join pool.
+    private Consumer<Output> visitRefreshAheadMethodBody(Method m) {
+        return out -> out
+                .ad("final long expiry = this.").ad(m.getMethodName()).ad("$expiry;").nl()
+                .ad("final long now = ").ad(m.getNanoTimeCall()).ad(";").nl()
+                .ad("if (0 == expiry || expiry + ").ad(Long.toString(ttlNanos)).ad("L - now <= 0) {").nl()
+                .ad("    try {").nl()
+                .ad("        return this.").ad(m.getMethodName()).ad("$reload(expiry);").nl()
+                .ad("    } catch (final java.lang.Throwable e$) {").nl()
+                .ad("        final java.lang.Throwable failure$ = this.").ad(m.getMethodName()).ad("$failure;").nl()
+                .ad("        if (null != failure$ && failure$ != e$) {").nl()
+                .ad("            e$.addSuppressed(failure$);").nl()
+                .ad("        }").nl()
+                .ad("        throw e$;").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .ad("final ").ad(m.getLocalMethodReturnType()).ad(" value = this.").ad(m.getMethodName()).ad(";").nl()
+                .ad("if (expiry - now <= 0 && this.").ad(m.getMethodName()).ad("$refreshing.compareAndSet(false, true)) {").nl()
+                .ad("    try {").nl()
+                .ad("        ").ad(executor(m)).ad(".execute(() -> {").nl()
+                .ad("            try {").nl()
+                .ad("                this.").ad(m.getMethodName()).ad("$reload(expiry);").nl()
+                .ad("            } catch (final java.lang.Exception e$) {").nl()
+                .ad("                this.").ad(m.getMethodName()).ad("$failure = e$;").nl()
+                .ad("            } finally {").nl()
+                .ad("                this.").ad(m.getMethodName()).ad("$refreshing.set(false);").nl()
+                .ad("            }").nl()
+                .ad("        });").nl()
+                .ad("    } catch (final java.util.concurrent.RejectedExecutionException e$) {").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$failure = e$;").nl()
+                .ad("        this.").ad(m.getMethodName()).ad("$refreshing.set(false);").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .ad("return value;").nl();
+    }
+
+    private static String executor(Method m) {
+        return m instanceof ModuleMethod && !((ModuleMethod) m).getExecutorArgument().isEmpty()
+                ? "this." + Utils.EXECUTOR_METHOD_NAME + "()"
+                : "java.util.concurrent.ForkJoinPool.commonPool()";
+    }
+
+    private Consumer<Output> visitReloadBegin0(Method m) {
+        return out -> out
+                .nl()
+                .ad("private ").ad(m.getMethodTypeParametersWithBoundsList()).ad(m.getLocalMethodReturnType()).ad(" ").ad(m.getMethodName()).ad("$reload(final long expiry) ").ad(m.getMethodThrowsList()).ad("{").nl()
+                .in();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodBegin(Method m) {
+        return out -> out
+                .ad("this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                .ad("try {").nl()
+                .ad("    if (expiry == this.").ad(m.getMethodName()).ad("$expiry) {").nl()
+                .ad("        final ").ad(m.getLocalMethodReturnType()).ad(" value = ")
+                .in(2);
+    }
+
+    @Override
+    public Consumer<Output> visitNullableMethodEnd(Method m) {
+        return out -> {
+            out
+                    .out(2)
+                    .ad(";").nl()
+                    .ad("        this.").ad(m.getMethodName()).ad(" = value;").nl()
+                    .ad("        this.").ad(m.getMethodName()).ad("$expiry = this.").ad(m.getMethodName()).ad("$deadline();").nl();
+            if (refreshAhead) {
+                out.ad("        this.").ad(m.getMethodName()).ad("$failure = null;").nl();
+            }
+            out
+                    .ad("        return value;").nl()
+                    .ad("    }").nl()
+                    .ad("    return this.").ad(m.getMethodName()).ad(";").nl()
+                    .ad("} finally {").nl()
+                    .ad("    this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                    .ad("}").nl();
+        };
+    }
+
+    private Consumer<Output> visitDeadline(Method m) {
+        return out -> out
+                .nl()
+                .ad("private long ").ad(m.getMethodName()).ad("$deadline() {").nl()
+                .ad("    final long expiry = ").ad(m.getNanoTimeCall()).ad(" + ").ad(Long.toString(ttlNanos)).ad("L;").nl()
+                .ad("    return 0 != expiry ? expiry : 1;").nl()
+                .ad("}").nl();
+    }
+
+    @Override
+    public Consumer<Output> visitNullableSetterBody(Method m) {
+        return out -> {
+            out
+                    .ad("    this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                    .ad("    try {").nl()
+                    .ad("        this.").ad(m.getMethodName()).ad(" = value;").nl()
+                    .ad("        this.").ad(m.getMethodName()).ad("$expiry = this.").ad(m.getMethodName()).ad("$deadline();").nl();
+            if (refreshAhead) {
+                out.ad("        this.").ad(m.getMethodName()).ad("$failure = null;").nl();
+            }
+            out
+                    .ad("    } finally {").nl()
+                    .ad("        this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                    .ad("    }").nl();
+        };
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullField(Method m, String prefix) {
+        return visitNullableField(m, prefix);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodBegin(Method m) {
+        return visitNullableMethodBegin(m);
+    }
+
+    @Override
+    public Consumer<Output> visitNonNullMethodEnd(Method m) {
+        return visitNullableMethodEnd(m);
+    }
+
+    // Only resets the expiry: The getter reads the value after the expiry without holding the lock, so if this nulled
+    // the value, then a getter which has already read a valid expiry could return null.
+    @Override
+    public Consumer<Output> visitClear(Method m) {
+        return out -> {
+            out
+                    .ad("this.").ad(m.getMethodName()).ad("$lock.lock();").nl()
+                    .ad("try {").nl()
+                    .ad("    this.").ad(m.getMethodName()).ad("$expiry = 0L;").nl();
+            if (refreshAhead) {
+                out.ad("    this.").ad(m.getMethodName()).ad("$failure = null;").nl();
+            }
+            out
+                    .ad("} finally {").nl()
+                    .ad("    this.").ad(m.getMethodName()).ad("$lock.unlock();").nl()
+                    .ad("}").nl();
+        };
+    }
+}
@@ -16,8 +16,14 @@
 package bali.java;
 
 import bali.java.AnnotationProcessor.ModuleInterface;
+import bali.java.AnnotationProcessor.ModuleInterface.ModuleMethod;
+import lombok.val;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 final class TypeVisitor {
 
@@ -33,8 +39,15 @@ final class TypeVisitor {
                 out
                         .nl()
                         .ad("static ").ad(m.getTypeParametersWithBoundsList()).ad(m.getLocalDeclaredType()).ad(" new$() {").nl()
-                        .ad("    return new ").ad(m.getSimpleName()).ad("$$();").nl()
+                        .ad("    return ").ad(m.isShareable() && m.isStateless() ? m.getSimpleName() + "$$.Shared$.INSTANCE" : "new " + m.getSimpleName() + "$$()").ad(";").nl()
                         .ad("}").nl();
+                if (m.isShareable()) {
+                    out
+                            .nl()
+                            .ad("static ").ad(m.getLocalDeclaredType()).ad(" shared$() {").nl()
+                            .ad("    return ").ad(m.getSimpleName()).ad("$$.Shared$.INSTANCE;").nl()
+                            .ad("}").nl();
+                }
             }
             m.forAllModuleMethods4CompanionInterface().accept(out);
             out.out().ad("}").nl();
@@ -49,8 +62,805 @@ final class TypeVisitor {
                     .ad(m.generated()).nl()
                     .ad(m.hasAbstractMethods() ? m.getModifiers().toString() + "abstract " : "final ").ad("class ").ad(m.getSimpleName()).ad(m.getTypeParametersWithBoundsList().isEmpty() ? "$$ " : "$$").ad(m.getTypeParametersWithBoundsList()).ad("implements ").ad(m.getSimpleName()).ad(m.getTypeParametersWithoutBoundsList().isEmpty() ? "$ " : "$").ad(m.getTypeParametersWithoutBoundsList()).ad("{").nl()
                     .in();
+            if (!m.getScopedMethodNames().isEmpty()) {
+                visitScope4CompanionClass(m).accept(out);
+            }
+            if (m.hasNullSentinel()) {
+                visitNull4CompanionClass().accept(out);
+            }
+            if (m.hasEpochMethods()) {
+                visitEpoch4CompanionClass(m).accept(out);
+            }
             m.forAllModuleMethods4CompanionClass().accept(out);
+            m.getEvictingMethods().forEach(method -> visitEvicting4CompanionClass(method).accept(out));
+            m.getJfrMethods().forEach(method -> visitConstruct4CompanionClass(m, method).accept(out));
+            if (!m.getThreadLocalMethods().isEmpty()) {
+                visitThreadLocals4CompanionClass(m).accept(out);
+            }
+            if (!m.getWarmUpSchedule().isEmpty()) {
+                visitWarmUp4CompanionClass(m).accept(out);
+            }
+            m.getInvalidationSchedule().forEach((method, dependents) -> visitInvalidate4CompanionClass(method, dependents).accept(out));
+            if (m.hasKeyedThreadSafeMethods()) {
+                visitJoin4CompanionClass().accept(out);
+            }
+            if (m.hasBoundedMethods()) {
+                visitBounded4CompanionClass().accept(out);
+            }
+            if (m.hasStripedMethods()) {
+                visitStripes4CompanionClass().accept(out);
+            }
+            if (!m.getJfrMethods().isEmpty()) {
+                visitConstructed4CompanionClass().accept(out);
+            }
+            m.getFreezeMethod().ifPresent(freeze -> visitFreeze4CompanionClass(m, freeze).accept(out));
+            m.getReconfigureMethods().forEach(reconfigure -> visitReconfigure4CompanionClass(m, reconfigure).accept(out));
+            if (m.isStats() || m.getStatsMethod().isPresent()) {
+                visitStats4CompanionClass(m).accept(out);
+            }
+            m.getRegisterStatsMethod().ifPresent(register -> visitRegisterStats4CompanionClass(register).accept(out));
+            if (m.isShareable()) {
+                visitShared4CompanionClass(m).accept(out);
+            }
             out.out().ad("}").nl();
         };
     }
+
+    private Consumer<Output> visitFreeze4CompanionClass(ModuleInterface m, ModuleMethod freeze) {
+        return out -> {
+            val typeParameters = m.getTypeParametersWithoutBoundsList().trim();
+            val companionClass = m.getSimpleName() + "$$" + typeParameters;
+            val setterNames = m
+                    .getFrozenMethods()
+                    .stream()
+                    .map(f -> Utils.setterName(f.getMethodElement()))
+                    .collect(Collectors.toSet());
+            out
+                    .nl()
+                    .ad("@Override").nl()
+                    .ad(freeze.getMethodModifiers().toString()).ad(freeze.getMethodSignatureWithoutModifiers()).ad("{").nl()
+                    .ad("    return new Frozen$").ad(typeParameters.isEmpty() ? "" : "<>").ad("(this);").nl()
+                    .ad("}").nl()
+                    .nl()
+                    .ad("// A snapshot of this module where the cached values of the shared caches are final fields.").nl()
+                    .ad("private static final class Frozen$").ad(m.getTypeParametersWithBoundsList().isEmpty() ? " " : "").ad(m.getTypeParametersWithBoundsList()).ad("implements ").ad(m.getSimpleName()).ad("$").ad(typeParameters).ad(" {").nl()
+                    .in()
+                    .nl()
+                    .ad("private final ").ad(companionClass).ad(" module$;").nl();
+            m.getFrozenMethods().forEach(f -> out
+                    .ad("private final ").ad(f.getLocalMethodReturnType()).ad(" ").ad(f.getMethodName()).ad(";").nl());
+            out
+                    .nl()
+                    .ad("Frozen$(final ").ad(companionClass).ad(" module) {").nl()
+                    .ad("    this.module$ = module;").nl();
+            m.getFrozenMethods().forEach(f -> out
+                    .ad("    this.").ad(f.getMethodName()).ad(" = module.").ad(f.getMethodName()).ad("();").nl());
+            out
+                    .ad("}").nl();
+            m.getFrozenMethods().forEach(f -> out
+                    .nl()
+                    .ad("@Override").nl()
+                    .ad(f.getMethodModifiers().toString()).ad(f.getMethodSignatureWithoutModifiers()).ad("{").nl()
+                    .ad("    return this.").ad(f.getMethodName()).ad(";").nl()
+                    .ad("}").nl());
+            out
+                    .nl()
+                    .ad("@Override").nl()
+                    .ad(freeze.getMethodModifiers().toString()).ad(freeze.getMethodSignatureWithoutModifiers()).ad("{").nl()
+                    .ad("    return this;").nl()
+                    .ad("}").nl();
+            m.getDelegatedMethods().forEach(d -> {
+                out
+                        .nl()
+                        .ad("@Override").nl()
+                        .ad(d.getMethodModifiers().toString()).ad(d.getMethodSignatureWithoutModifiers()).ad("{").nl();
+                if (!Utils.hasNonVoidReturnType(d.getMethodElement())
+                        && 1 == d.getMethodParameters().size()
+                        && setterNames.contains(d.getMethodName().toString())) {
+                    out.ad("    throw new java.lang.UnsupportedOperationException(\"This module is frozen.\");").nl();
+                } else {
+                    out
+                            .ad(Utils.hasNonVoidReturnType(d.getMethodElement()) ? "    return " : "    ")
+                            .ad("this.module$.").ad(d.getMethodName()).ad("(").ad(d.getMethodParametersWithoutTypesList()).ad(");").nl();
+                }
+                out.ad("}").nl();
+            });
+            out.out().ad("}").nl();
+        };
+    }
+
+    // Prepares a new module with the given configuration, so that the caller can publish it in one atomic step, e.g.
+    // by swapping an atomic reference, and close the displaced values of this module when done.
+    // The new module takes over the cached values of this module unless the configurer has cached a value for the same
+    // method or any of its dependencies in the new module.
+    // Only the caches which are shared by all threads and don't expire can transfer their values.
+    // Also, the dependencies are only known for the abstract methods which make components.
+    private Consumer<Output> visitReconfigure4CompanionClass(ModuleInterface m, ModuleMethod reconfigure) {
+        return out -> {
+            val typeParameters = m.getTypeParametersWithoutBoundsList().trim();
+            val parameters = reconfigure.getMethodParameters();
+            val configurer = parameters.get(0).getSimpleName().toString();
+            val displaced = 1 < parameters.size() ? Optional.of(parameters.get(1).getSimpleName().toString()) : Optional.<String>empty();
+            val transferable = m.getTransferableMethods();
+            out
+                    .nl()
+                    .ad("@Override").nl()
+                    .ad(reconfigure.getMethodModifiers().toString()).ad(reconfigure.getMethodSignatureWithoutModifiers()).ad("{").nl()
+                    .ad("    final ").ad(m.getSimpleName()).ad("$$").ad(typeParameters).ad(" next$ = new ").ad(m.getSimpleName()).ad("$$").ad(typeParameters.isEmpty() ? "" : "<>").ad("();").nl()
+                    .ad("    ").ad(configurer).ad(".accept(next$);").nl()
+                    .in();
+            transferable.forEach(method -> {
+                out.ad("final boolean ").ad(method.getMethodName()).ad("$changed = ");
+                method.getMethodVisitor().visitPresent(method, "next$").accept(out);
+                out.ad(";").nl();
+            });
+            val schedule = m.getInvalidationSchedule();
+            transferable.forEach(method -> {
+                val changed = transferable
+                        .stream()
+                        .filter(dependency -> schedule
+                                .entrySet()
+                                .stream()
+                                .anyMatch(e -> e.getKey().getMethodName().equals(dependency.getMethodName())
+                                        && e.getValue().contains(method)))
+                        .map(dependency -> dependency.getMethodName() + "$changed")
+                        .collect(Collectors.toList());
+                out.ad("if (!").ad(1 == changed.size() ? changed.get(0) : Utils.mkString(changed, "(", " || ", ")")).ad(") {").nl().in();
+                method.getMethodVisitor().visitTransfer(method, "this", "next$").accept(out);
+                out.out();
+                if (displaced.isPresent()) {
+                    out.ad("} else {").nl().in();
+                    method.getMethodVisitor().visitDisplace(method, "this", displaced.get()).accept(out);
+                    out.out();
+                }
+                out.ad("}").nl();
+            });
+            out
+                    .out()
+                    .ad("    return next$;").nl()
+                    .ad("}").nl();
+        };
+    }
+
+    private Consumer<Output> visitStats4CompanionClass(ModuleInterface m) {
+        return out -> {
+            m.getStatsMethods().forEach(method -> out
+                    .nl()
+                    .ad("private final Stats$ ").ad(method.getStatsFieldName()).ad(" = new Stats$();").nl());
+            out.nl();
+            if (m.getStatsMethod().isPresent()) {
+                out.ad("@Override").nl();
+            }
+            out
+                    .ad("public java.util.Map<java.lang.String, java.util.Map<java.lang.String, java.lang.Long>> stats$() {").nl()
+                    .ad("    final java.util.Map<java.lang.String, java.util.Map<java.lang.String, java.lang.Long>> stats = new java.util.LinkedHashMap<>();").nl();
+            m.getStatsMethods().forEach(method -> out
+                    .ad("    stats.put(\"").ad(method.getStatsKey()).ad("\", this.").ad(method.getStatsFieldName()).ad(".snapshot());").nl());
+            out
+                    .ad("    return java.util.Collections.unmodifiableMap(stats);").nl()
+                    .ad("}").nl();
+            if (!m.getStatsMethods().isEmpty()) {
+                visitStatsClass4CompanionClass().accept(out);
+            }
+        };
+    }
+
+    private Consumer<Output> visitStatsClass4CompanionClass() {
+        return out -> out
+                .nl()
+                .ad("// The statistics of a module method. A hit is a call which didn't construct a new value.").nl()
+                .ad("private static final class Stats$ {").nl()
+                .nl()
+                .ad("    private final java.util.concurrent.atomic.LongAdder calls = new java.util.concurrent.atomic.LongAdder();").nl()
+                .ad("    private final java.util.concurrent.atomic.LongAdder constructions = new java.util.concurrent.atomic.LongAdder();").nl()
+                .ad("    private final java.util.concurrent.atomic.LongAdder constructionNanos = new java.util.concurrent.atomic.LongAdder();").nl()
+                .ad("    private final java.util.concurrent.atomic.LongAdder setterCalls = new java.util.concurrent.atomic.LongAdder();").nl()
+                .nl()
+                .ad("    void call() {").nl()
+                .ad("        this.calls.increment();").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    long constructing() {").nl()
+                .ad("        this.constructions.increment();").nl()
+                .ad("        return java.lang.System.nanoTime();").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    <V> V constructed(final long start, final V value) {").nl()
+                .ad("        this.constructionNanos.add(java.lang.System.nanoTime() - start);").nl()
+                .ad("        return value;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    void set() {").nl()
+                .ad("        this.setterCalls.increment();").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    java.util.Map<java.lang.String, java.lang.Long> snapshot() {").nl()
+                .ad("        final long constructions = this.constructions.sum();").nl()
+                .ad("        final long calls = this.calls.sum();").nl()
+                .ad("        final java.util.Map<java.lang.String, java.lang.Long> snapshot = new java.util.LinkedHashMap<>();").nl()
+                .ad("        snapshot.put(\"calls\", calls);").nl()
+                .ad("        snapshot.put(\"hits\", java.lang.Math.max(0L, calls - constructions));").nl()
+                .ad("        snapshot.put(\"misses\", constructions);").nl()
+                .ad("        snapshot.put(\"constructionNanos\", this.constructionNanos.sum());").nl()
+                .ad("        snapshot.put(\"setterCalls\", this.setterCalls.sum());").nl()
+                .ad("        return java.util.Collections.unmodifiableMap(snapshot);").nl()
+                .ad("    }").nl()
+                .ad("}").nl();
+    }
+
+    // Registers the statistics as the read-only attributes "method.counter" of a dynamic MBean, so that the companion
+    // class doesn't need a public MBean interface.
+    private Consumer<Output> visitRegisterStats4CompanionClass(ModuleMethod register) {
+        return out -> out
+                .nl()
+                .ad("@Override").nl()
+                .ad(register.getMethodModifiers().toString()).ad(register.getMethodSignatureWithoutModifiers()).ad("{").nl()
+                .ad("    ").ad(Utils.hasNonVoidReturnType(register.getMethodElement()) ? "return " : "").ad("java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(new StatsMBean$(this::stats$), ").ad(register.getMethodParametersWithoutTypesList()).ad(");").nl()
+                .ad("}").nl()
+                .nl()
+                .ad("private static final class StatsMBean$ implements javax.management.DynamicMBean {").nl()
+                .nl()
+                .ad("    private final java.util.function.Supplier<java.util.Map<java.lang.String, java.util.Map<java.lang.String, java.lang.Long>>> stats;").nl()
+                .nl()
+                .ad("    StatsMBean$(final java.util.function.Supplier<java.util.Map<java.lang.String, java.util.Map<java.lang.String, java.lang.Long>>> stats) {").nl()
+                .ad("        this.stats = stats;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    private java.util.Map<java.lang.String, java.lang.Long> attributes() {").nl()
+                .ad("        final java.util.Map<java.lang.String, java.lang.Long> attributes = new java.util.LinkedHashMap<>();").nl()
+                .ad("        this.stats.get().forEach((method, counters) -> counters.forEach((counter, value) -> attributes.put(method + \".\" + counter, value)));").nl()
+                .ad("        return attributes;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    @Override").nl()
+                .ad("    public java.lang.Object getAttribute(final java.lang.String attribute) throws javax.management.AttributeNotFoundException {").nl()
+                .ad("        final java.lang.Long value = attributes().get(attribute);").nl()
+                .ad("        if (null == value) {").nl()
+                .ad("            throw new javax.management.AttributeNotFoundException(attribute);").nl()
+                .ad("        }").nl()
+                .ad("        return value;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    @Override").nl()
+                .ad("    public void setAttribute(final javax.management.Attribute attribute) throws javax.management.AttributeNotFoundException {").nl()
+                .ad("        throw new javax.management.AttributeNotFoundException(attribute.getName());").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    @Override").nl()
+                .ad("    public javax.management.AttributeList getAttributes(final java.lang.String[] names) {").nl()
+                .ad("        final java.util.Map<java.lang.String, java.lang.Long> attributes = attributes();").nl()
+                .ad("        final javax.management.AttributeList list = new javax.management.AttributeList();").nl()
+                .ad("        for (final java.lang.String name : names) {").nl()
+                .ad("            final java.lang.Long value = attributes.get(name);").nl()
+                .ad("            if (null != value) {").nl()
+                .ad("                list.add(new javax.management.Attribute(name, value));").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("        return list;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    @Override").nl()
+                .ad("    public javax.management.AttributeList setAttributes(final javax.management.AttributeList attributes) {").nl()
+                .ad("        return new javax.management.AttributeList();").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    @Override").nl()
+                .ad("    public java.lang.Object invoke(final java.lang.String action, final java.lang.Object[] params, final java.lang.String[] signature) throws javax.management.ReflectionException {").nl()
+                .ad("        throw new javax.management.ReflectionException(new java.lang.NoSuchMethodException(action));").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    @Override").nl()
+                .ad("    public javax.management.MBeanInfo getMBeanInfo() {").nl()
+                .ad("        return new javax.management.MBeanInfo(").nl()
+                .ad("                getClass().getName(),").nl()
+                .ad("                \"The statistics of the module methods.\",").nl()
+                .ad("                attributes()").nl()
+                .ad("                        .keySet()").nl()
+                .ad("                        .stream()").nl()
+                .ad("                        .map(name -> new javax.management.MBeanAttributeInfo(name, \"java.lang.Long\", name, true, false, false))").nl()
+                .ad("                        .toArray(javax.management.MBeanAttributeInfo[]::new),").nl()
+                .ad("                null, null, null);").nl()
+                .ad("    }").nl()
+                .ad("}").nl();
+    }
+
+    private Consumer<Output> visitShared4CompanionClass(ModuleInterface m) {
+        return out -> out
+                .nl()
+                .ad("static final class Shared$ {").nl()
+                .nl()
+                .ad("    static final ").ad(m.getSimpleName()).ad("$$ INSTANCE = new ").ad(m.getSimpleName()).ad("$$();").nl()
+                .ad("}").nl();
+    }
+
+    // The callback runs on the thread which completes the future and compares it with the cache field while holding
+    // the lock of the cache.
+    // As the getter holds this lock until it has cached the future, the callback cannot overtake it - unless the
+    // future has already failed when the callback gets registered, e.g. on a direct executor, so that the callback runs
+    // on the calling thread.
+    // In this case, the eviction needs to wait for the getter to release the lock, so it gets handed off to the common
+    // pool because the executor of the module could be the calling thread again.
+    private Consumer<Output> visitEvicting4CompanionClass(ModuleMethod m) {
+        return out -> {
+            out
+                    .nl()
+                    .ad("private ").ad(m.getLocalMethodReturnType()).ad(" ").ad(m.getMethodName()).ad("$evicting(final ").ad(m.getLocalMethodReturnType()).ad(" future) {").nl()
+                    .ad("    future.whenComplete((value, e) -> {").nl()
+                    .ad("        if (null != e) {").nl()
+                    .ad("            if (this.").ad(m.getMethodName()).ad("$lock.isHeldByCurrentThread()) {").nl()
+                    .ad("                java.util.concurrent.ForkJoinPool.commonPool().execute(() -> this.").ad(m.getMethodName()).ad("$evict(future));").nl()
+                    .ad("            } else {").nl()
+                    .ad("                this.").ad(m.getMethodName()).ad("$evict(future);").nl()
+                    .ad("            }").nl()
+                    .ad("        }").nl()
+                    .ad("    });").nl()
+                    .ad("    return future;").nl()
+                    .ad("}").nl()
+                    .nl()
+                    .ad("private void ").ad(m.getMethodName()).ad("$evict(final ").ad(m.getLocalMethodReturnType()).ad(" future) {").nl()
+                    .in();
+            m.getMethodVisitor().visitEvict(m, "future").accept(out);
+            out
+                    .out()
+                    .ad("}").nl();
+        };
+    }
+
+    // Constructs the component and emits a JFR event for it. Without recording, this only costs the isEnabled() check.
+    private Consumer<Output> visitConstruct4CompanionClass(ModuleInterface m, ModuleMethod method) {
+        return out -> out
+                .nl()
+                .ad("private ").ad(method.getMethodTypeParametersWithBoundsList()).ad(method.getLocalMethodReturnType()).ad(" ").ad(method.getMethodName()).ad("$construct(").ad(method.getMethodParametersWithTypesList()).ad(") ").ad(method.getMethodThrowsList()).ad("{").nl()
+                .ad("    final Constructed$ event = new Constructed$();").nl()
+                .ad("    if (!event.isEnabled()) {").nl()
+                .ad("        return ").ad(method.getConstructionCall()).ad(";").nl()
+                .ad("    }").nl()
+                .ad("    final int[] depth = Constructed$.DEPTH.get();").nl()
+                .ad("    event.depth = depth[0]++;").nl()
+                .ad("    event.begin();").nl()
+                .ad("    try {").nl()
+                .ad("        return ").ad(method.getConstructionCall()).ad(";").nl()
+                .ad("    } finally {").nl()
+                .ad("        event.end();").nl()
+                .ad("        depth[0]--;").nl()
+                .ad("        if (event.shouldCommit()) {").nl()
+                .ad("            event.moduleType = \"").ad(m.getElement().getQualifiedName()).ad("\";").nl()
+                .ad("            event.methodName = \"").ad(method.getMethodName()).ad("\";").nl()
+                .ad("            event.cachingStrategy = \"").ad(method.getConstructionStrategyName()).ad("\";").nl()
+                .ad("            event.commit();").nl()
+                .ad("        }").nl()
+                .ad("    }").nl()
+                .ad("}").nl();
+    }
+
+    private Consumer<Output> visitConstructed4CompanionClass() {
+        return out -> out
+                .nl()
+                .ad("// The event classes of all modules share the same name, so that a recording can enable them all at once.").nl()
+                .ad("// The module type tells them apart.").nl()
+                .ad("@jdk.jfr.Name(\"bali.ComponentConstructed\")").nl()
+                .ad("@jdk.jfr.Label(\"Component Constructed\")").nl()
+                .ad("@jdk.jfr.Category(\"Bali\")").nl()
+                .ad("@jdk.jfr.Description(\"The construction of a component by a module method.\")").nl()
+                .ad("static final class Constructed$ extends jdk.jfr.Event {").nl()
+                .nl()
+                .ad("    // The number of enclosing constructions by the module methods of this module type on the current thread.").nl()
+                .ad("    static final java.lang.ThreadLocal<int[]> DEPTH = java.lang.ThreadLocal.withInitial(() -> new int[1]);").nl()
+                .nl()
+                .ad("    @jdk.jfr.Label(\"Module Type\")").nl()
+                .ad("    java.lang.String moduleType;").nl()
+                .nl()
+                .ad("    @jdk.jfr.Label(\"Method Name\")").nl()
+                .ad("    java.lang.String methodName;").nl()
+                .nl()
+                .ad("    @jdk.jfr.Label(\"Caching Strategy\")").nl()
+                .ad("    java.lang.String cachingStrategy;").nl()
+                .nl()
+                .ad("    @jdk.jfr.Label(\"Nesting Depth\")").nl()
+                .ad("    int depth;").nl()
+                .ad("}").nl();
+    }
+
+    // Unlike an instance field, e.g. the cache itself, the sentinel has a stable identity hash code and never references
+    // the module.
+    private Consumer<Output> visitNull4CompanionClass() {
+        return out -> out
+                .nl()
+                .ad("private static final java.lang.Object NULL$ = new java.lang.Object();").nl();
+    }
+
+    // The epoch is advanced through a field updater, so that reading it is a plain volatile read of the module.
+    private Consumer<Output> visitEpoch4CompanionClass(ModuleInterface m) {
+        return out -> out
+                .nl()
+                .ad("private volatile long epoch$;").nl()
+                .nl()
+                // The type argument is raw if the companion class is generic:
+                .ad("@SuppressWarnings(\"rawtypes\")").nl()
+                .ad("private static final java.util.concurrent.atomic.AtomicLongFieldUpdater<").ad(m.getSimpleName()).ad("$$> epoch$updater =").nl()
+                .ad("        java.util.concurrent.atomic.AtomicLongFieldUpdater.newUpdater(").ad(m.getSimpleName()).ad("$$.class, \"epoch$\");").nl()
+                .nl()
+                .ad("public void advanceEpoch$() {").nl()
+                .ad("    epoch$updater.incrementAndGet(this);").nl()
+                .ad("}").nl();
+    }
+
+    private Consumer<Output> visitBounded4CompanionClass() {
+        return out -> out
+                .nl()
+                .ad("// A bounded map with a small admission window and a main segment, both in insertion order.").nl()
+                .ad("// When the window overflows, its oldest key competes with the oldest key of the main segment and the key with the").nl()
+                .ad("// higher estimated frequency stays (TinyLFU admission).").nl()
+                .ad("// Only the map, the window and the main segment are thread-safe: Lookups update the frequency sketch and the sample").nl()
+                .ad("// count without synchronization, so concurrent lookups may lose increments or halve the sketch twice.").nl()
+                .ad("// This only skews the frequency estimate, which decides about admission, but never the map contents.").nl()
+                .ad("private static final class Bounded$<V> {").nl()
+                .nl()
+                .ad("    private final java.util.concurrent.ConcurrentHashMap<java.lang.Object, V> map = new java.util.concurrent.ConcurrentHashMap<>();").nl()
+                .ad("    private final java.util.ArrayDeque<java.lang.Object> window = new java.util.ArrayDeque<>();").nl()
+                .ad("    private final java.util.ArrayDeque<java.lang.Object> main = new java.util.ArrayDeque<>();").nl()
+                .ad("    private final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();").nl()
+                .ad("    private final java.util.concurrent.atomic.LongAdder hits = new java.util.concurrent.atomic.LongAdder();").nl()
+                .ad("    private final java.util.concurrent.atomic.LongAdder misses = new java.util.concurrent.atomic.LongAdder();").nl()
+                .ad("    private final java.util.concurrent.atomic.LongAdder evictions = new java.util.concurrent.atomic.LongAdder();").nl()
+                .ad("    private final int windowSize;").nl()
+                .ad("    private final int mainSize;").nl()
+                .ad("    private final int sampleSize;").nl()
+                .ad("    // A count-min sketch with four-bit counters.").nl()
+                .ad("    private final byte[] sketch;").nl()
+                .ad("    private int samples;").nl()
+                .nl()
+                .ad("    Bounded$(final int maxSize, final int sketchLength) {").nl()
+                .ad("        this.windowSize = java.lang.Math.max(1, maxSize / 100);").nl()
+                .ad("        this.mainSize = maxSize - this.windowSize;").nl()
+                .ad("        this.sampleSize = 10 * java.lang.Math.min(maxSize, 1 << 24);").nl()
+                .ad("        this.sketch = new byte[sketchLength];").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    V get(final java.lang.Object key) {").nl()
+                .ad("        final V value = this.map.get(key);").nl()
+                .ad("        (null != value ? this.hits : this.misses).increment();").nl()
+                .ad("        increment(key);").nl()
+                .ad("        return value;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    V put(final java.lang.Object key, final V value) {").nl()
+                .ad("        return putIfAbsent(key, value);").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    V putIfAbsent(final java.lang.Object key, final V value) {").nl()
+                .ad("        final V previous = this.map.putIfAbsent(key, value);").nl()
+                .ad("        if (null == previous) {").nl()
+                .ad("            this.lock.lock();").nl()
+                .ad("            try {").nl()
+                .ad("                this.window.addLast(key);").nl()
+                .ad("                if (this.window.size() > this.windowSize) {").nl()
+                .ad("                    final java.lang.Object candidate = this.window.pollFirst();").nl()
+                .ad("                    if (this.main.size() < this.mainSize) {").nl()
+                .ad("                        this.main.addLast(candidate);").nl()
+                .ad("                    } else {").nl()
+                .ad("                        final java.lang.Object victim = this.main.peekFirst();").nl()
+                .ad("                        if (null != victim && frequency(candidate) > frequency(victim)) {").nl()
+                .ad("                            evict(this.main.pollFirst());").nl()
+                .ad("                            this.main.addLast(candidate);").nl()
+                .ad("                        } else {").nl()
+                .ad("                            evict(candidate);").nl()
+                .ad("                        }").nl()
+                .ad("                    }").nl()
+                .ad("                }").nl()
+                .ad("            } finally {").nl()
+                .ad("                this.lock.unlock();").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("        return previous;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    boolean remove(final java.lang.Object key, final V value) {").nl()
+                .ad("        if (this.map.remove(key, value)) {").nl()
+                .ad("            this.lock.lock();").nl()
+                .ad("            try {").nl()
+                .ad("                if (!this.window.remove(key)) {").nl()
+                .ad("                    this.main.remove(key);").nl()
+                .ad("                }").nl()
+                .ad("            } finally {").nl()
+                .ad("                this.lock.unlock();").nl()
+                .ad("            }").nl()
+                .ad("            return true;").nl()
+                .ad("        }").nl()
+                .ad("        return false;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    void clear() {").nl()
+                .ad("        this.lock.lock();").nl()
+                .ad("        try {").nl()
+                .ad("            this.map.clear();").nl()
+                .ad("            this.window.clear();").nl()
+                .ad("            this.main.clear();").nl()
+                .ad("        } finally {").nl()
+                .ad("            this.lock.unlock();").nl()
+                .ad("        }").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    java.util.Map<java.lang.String, java.lang.Long> stats() {").nl()
+                .ad("        final java.util.Map<java.lang.String, java.lang.Long> stats = new java.util.LinkedHashMap<>();").nl()
+                .ad("        stats.put(\"hits\", this.hits.sum());").nl()
+                .ad("        stats.put(\"misses\", this.misses.sum());").nl()
+                .ad("        stats.put(\"evictions\", this.evictions.sum());").nl()
+                .ad("        stats.put(\"size\", (long) this.map.size());").nl()
+                .ad("        return java.util.Collections.unmodifiableMap(stats);").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    private void evict(final java.lang.Object key) {").nl()
+                .ad("        this.map.remove(key);").nl()
+                .ad("        this.evictions.increment();").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    private int frequency(final java.lang.Object key) {").nl()
+                .ad("        final int hash = key.hashCode();").nl()
+                .ad("        int frequency = java.lang.Integer.MAX_VALUE;").nl()
+                .ad("        for (int i = 0; i < 4; i++) {").nl()
+                .ad("            frequency = java.lang.Math.min(frequency, this.sketch[index(hash, i)]);").nl()
+                .ad("        }").nl()
+                .ad("        return frequency;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    private void increment(final java.lang.Object key) {").nl()
+                .ad("        final int hash = key.hashCode();").nl()
+                .ad("        for (int i = 0; i < 4; i++) {").nl()
+                .ad("            final int index = index(hash, i);").nl()
+                .ad("            if (this.sketch[index] < 15) {").nl()
+                .ad("                this.sketch[index]++;").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("        if (++this.samples >= this.sampleSize) {").nl()
+                .ad("            this.samples = 0;").nl()
+                .ad("            for (int i = 0; i < this.sketch.length; i++) {").nl()
+                .ad("                this.sketch[i] >>= 1;").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    private int index(final int hash, final int i) {").nl()
+                .ad("        int h = (hash + i) * 0x9e3779b9;").nl()
+                .ad("        h ^= h >>> 16;").nl()
+                .ad("        return h & (this.sketch.length - 1);").nl()
+                .ad("    }").nl()
+                .ad("}").nl();
+    }
+
+    // Each replica is claimed by one thread, so that a value which isn't thread-safe never gets shared.
+    // A thread looks for its replica at the index given by its identity hash code first, so unlike a thread local, this
+    // doesn't add an entry to the map of each thread for each module instance.
+    // If all replicas are claimed by live threads, then the table doubles, up to the number of available processors
+    // rounded up to a power of two.
+    // Beyond that, a thread gets no replica, so the getter returns a new value without caching it.
+    // The replica of a terminated thread can be claimed by another thread, which then takes over its value.
+    private Consumer<Output> visitStripes4CompanionClass() {
+        return out -> out
+                .nl()
+                .ad("private static final class Stripes$ {").nl()
+                .nl()
+                .ad("    private static final int MAX_LENGTH =").nl()
+                .ad("            java.lang.Integer.highestOneBit(java.lang.Runtime.getRuntime().availableProcessors() * 2 - 1);").nl()
+                .nl()
+                .ad("    private volatile Replica$[] table = new Replica$[java.lang.Math.min(2, MAX_LENGTH)];").nl()
+                .nl()
+                .ad("    Replica$ claim() {").nl()
+                .ad("        final java.lang.Thread current = java.lang.Thread.currentThread();").nl()
+                .ad("        final int hash = java.lang.System.identityHashCode(current);").nl()
+                .ad("        final Replica$[] table = this.table;").nl()
+                .ad("        final int length = table.length;").nl()
+                .ad("        boolean claimable = length < MAX_LENGTH;").nl()
+                .ad("        for (int i = 0; i < length; i++) {").nl()
+                .ad("            final Replica$ replica = table[(hash + i) & (length - 1)];").nl()
+                .ad("            if (null == replica) {").nl()
+                .ad("                claimable = true;").nl()
+                .ad("            } else {").nl()
+                .ad("                final java.lang.Thread owner = replica.owner;").nl()
+                .ad("                if (owner == current) {").nl()
+                .ad("                    return replica;").nl()
+                .ad("                } else if (!claimable && (null == owner || !owner.isAlive())) {").nl()
+                .ad("                    claimable = true;").nl()
+                .ad("                }").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("        return claimable ? claim(current, hash) : null;").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    private synchronized Replica$ claim(final java.lang.Thread current, final int hash) {").nl()
+                .ad("        Replica$[] table = this.table;").nl()
+                .ad("        while (true) {").nl()
+                .ad("            final int length = table.length;").nl()
+                .ad("            for (int i = 0; i < length; i++) {").nl()
+                .ad("                final int index = (hash + i) & (length - 1);").nl()
+                .ad("                final Replica$ replica = table[index];").nl()
+                .ad("                if (null == replica) {").nl()
+                .ad("                    return table[index] = new Replica$(current);").nl()
+                .ad("                } else if (!replica.owner.isAlive()) {").nl()
+                .ad("                    replica.owner = current;").nl()
+                .ad("                    return replica;").nl()
+                .ad("                }").nl()
+                .ad("            }").nl()
+                .ad("            if (length >= MAX_LENGTH) {").nl()
+                .ad("                return null;").nl()
+                .ad("            }").nl()
+                .ad("            this.table = table = java.util.Arrays.copyOf(table, length << 1);").nl()
+                .ad("        }").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    void clear() {").nl()
+                .ad("        for (final Replica$ replica : this.table) {").nl()
+                .ad("            if (null != replica) {").nl()
+                .ad("                replica.value = null;").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .nl()
+                .ad("private static final class Replica$ {").nl()
+                .nl()
+                .ad("    volatile java.lang.Thread owner;").nl()
+                .ad("    volatile java.lang.Object value;").nl()
+                .nl()
+                .ad("    Replica$(final java.lang.Thread owner) {").nl()
+                .ad("        this.owner = owner;").nl()
+                .ad("    }").nl()
+                .ad("}").nl();
+    }
+
+    // A task remembers the thread which runs it, so that a recursive call with the same key fails instead of waiting
+    // for itself forever.
+    private Consumer<Output> visitJoin4CompanionClass() {
+        return out -> out
+                .nl()
+                .ad("private static final class Task$ extends java.util.concurrent.FutureTask<java.lang.Object> {").nl()
+                .nl()
+                .ad("    private volatile java.lang.Thread runner;").nl()
+                .nl()
+                .ad("    Task$(final java.util.concurrent.Callable<java.lang.Object> callable) {").nl()
+                .ad("        super(callable);").nl()
+                .ad("    }").nl()
+                .nl()
+                .ad("    @Override").nl()
+                .ad("    public void run() {").nl()
+                .ad("        this.runner = java.lang.Thread.currentThread();").nl()
+                .ad("        try {").nl()
+                .ad("            super.run();").nl()
+                .ad("        } finally {").nl()
+                .ad("            this.runner = null;").nl()
+                .ad("        }").nl()
+                .ad("    }").nl()
+                .ad("}").nl()
+                .nl()
+                .ad("private static java.lang.Object join$(final Task$ task) throws java.util.concurrent.ExecutionException {").nl()
+                .ad("    if (task.runner == java.lang.Thread.currentThread()) {").nl()
+                .ad("        throw new java.lang.IllegalStateException(\"Recursive call with the same key.\");").nl()
+                .ad("    }").nl()
+                .ad("    boolean interrupted = false;").nl()
+                .ad("    try {").nl()
+                .ad("        while (true) {").nl()
+                .ad("            try {").nl()
+                .ad("                return task.get();").nl()
+                .ad("            } catch (final java.lang.InterruptedException e) {").nl()
+                .ad("                interrupted = true;").nl()
+                .ad("            }").nl()
+                .ad("        }").nl()
+                .ad("    } finally {").nl()
+                .ad("        if (interrupted) {").nl()
+                .ad("            java.lang.Thread.currentThread().interrupt();").nl()
+                .ad("        }").nl()
+                .ad("    }").nl()
+                .ad("}").nl();
+    }
+
+    private Consumer<Output> visitWarmUp4CompanionClass(ModuleInterface m) {
+        return out -> {
+            out
+                    .nl()
+                    .ad("public void warmUp$() {").nl()
+                    .in();
+            m.getWarmUpSchedule().keySet().forEach(method -> out.ad(method.getMethodName()).ad("();").nl());
+            out
+                    .out()
+                    .ad("}").nl()
+                    .nl()
+                    .ad("public java.util.concurrent.CompletableFuture<java.lang.Void> warmUp$(final java.util.concurrent.Executor executor) {").nl()
+                    .in();
+            m.getWarmUpSchedule().forEach((method, prerequisites) -> {
+                out.ad("final java.util.concurrent.CompletableFuture<java.lang.Void> ").ad(method.getMethodName()).ad("$ = ");
+                if (prerequisites.isEmpty()) {
+                    out.ad("java.util.concurrent.CompletableFuture.runAsync(");
+                } else {
+                    out.ad("java.util.concurrent.CompletableFuture.allOf(").ad(futures(prerequisites)).ad(").thenRunAsync(");
+                }
+                out.ad("this::").ad(method.getMethodName()).ad(", executor);").nl();
+            });
+            out
+                    .ad("return java.util.concurrent.CompletableFuture.allOf(").ad(futures(m.getWarmUpSchedule().keySet())).ad(");").nl()
+                    .out()
+                    .ad("}").nl();
+        };
+    }
+
+    private Consumer<Output> visitInvalidate4CompanionClass(ModuleMethod m, List<ModuleMethod> dependents) {
+        return out -> {
+            out
+                    .nl()
+                    .ad("public void ").ad(m.getMethodName()).ad("$invalidate() {").nl()
+                    .in();
+            dependents.forEach(method -> method.getMethodVisitor().visitClear(method).accept(out));
+            out
+                    .out()
+                    .ad("}").nl();
+        };
+    }
+
+    private static String futures(Collection<ModuleMethod> methods) {
+        return methods.stream().map(method -> method.getMethodName() + "$").collect(Collectors.joining(", "));
+    }
+
+    private Consumer<Output> visitThreadLocals4CompanionClass(ModuleInterface m) {
+        return out -> {
+            out
+                    .nl()
+                    .ad("public void releaseThreadLocals$() {").nl()
+                    .in();
+            m.getThreadLocalMethods().forEach(method -> method.getMethodVisitor().visitClear(method).accept(out));
+            out
+                    .out()
+                    .ad("}").nl()
+                    .nl()
+                    .ad("public java.util.concurrent.Executor releasingThreadLocals$(final java.util.concurrent.Executor executor) {").nl()
+                    .ad("    return task -> executor.execute(() -> {").nl()
+                    .ad("        try {").nl()
+                    .ad("            task.run();").nl()
+                    .ad("        } finally {").nl()
+                    .ad("            releaseThreadLocals$();").nl()
+                    .ad("        }").nl()
+                    .ad("    });").nl()
+                    .ad("}").nl();
+        };
+    }
+
+    // The scope is bound to the calling thread by a thread local rather than a java.lang.ScopedValue, which is only a
+    // preview API in Java 21 and later: So a task which runs on another thread, e.g. a child thread or a virtual thread
+    // forked by a structured task scope, doesn't see the scope of its parent.
+    private Consumer<Output> visitScope4CompanionClass(ModuleInterface m) {
+        return out -> {
+            out
+                    .nl()
+                    .ad("private final java.lang.ThreadLocal<java.lang.Object[]> scope$ = new java.lang.ThreadLocal<>();").nl()
+                    .nl()
+                    .ad("public void runScoped$(final java.lang.Runnable task) {").nl()
+                    .ad("    final java.lang.Object[] outer = this.scope$.get();").nl()
+                    .ad("    this.scope$.set(new java.lang.Object[").ad(Integer.toString(m.getScopedMethodNames().size())).ad("]);").nl()
+                    .ad("    try {").nl()
+                    .ad("        task.run();").nl()
+                    .ad("    } finally {").nl();
+            visitScopeExit().accept(out);
+            out
+                    .ad("    }").nl()
+                    .ad("}").nl()
+                    .nl()
+                    .ad("public <V> V callScoped$(final java.util.concurrent.Callable<V> task) throws java.lang.Exception {").nl()
+                    .ad("    final java.lang.Object[] outer = this.scope$.get();").nl()
+                    .ad("    this.scope$.set(new java.lang.Object[").ad(Integer.toString(m.getScopedMethodNames().size())).ad("]);").nl()
+                    .ad("    try {").nl()
+                    .ad("        return task.call();").nl()
+                    .ad("    } finally {").nl();
+            visitScopeExit().accept(out);
+            out
+                    .ad("    }").nl()
+                    .ad("}").nl();
+        };
+    }
+
+    private Consumer<Output> visitScopeExit() {
+        return out -> out
+                .ad("        if (null != outer) {").nl()
+                .ad("            this.scope$.set(outer);").nl()
+                .ad("        } else {").nl()
+                .ad("            this.scope$.remove();").nl()
+                .ad("        }").nl();
+    }
 }
@@ -19,17 +19,19 @@ import bali.Cache;
 import bali.CacheNullable;
 import bali.CachingStrategy;
 import bali.Module;
+import lombok.val;
 import lombok.var;
 
 import javax.lang.model.AnnotatedConstruct;
 import javax.lang.model.element.*;
 import javax.lang.model.type.TypeMirror;
 import java.lang.annotation.Annotation;
-import java.util.Collection;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.ResourceBundle;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -46,10 +48,68 @@ final class Utils {
 
     static final String CACHING_STRATEGY_CLASSNAME = CachingStrategy.class.getName();
 
+    static final String ADVANCE_EPOCH_METHOD_NAME = "advanceEpoch$";
+
+    static final String APPLY_METHOD_SUFFIX = "$apply";
+
+    static final String CACHE_STATS_METHOD_SUFFIX = "$cacheStats";
+
+    static final String CALL_SCOPED_METHOD_NAME = "callScoped$";
+
+    static final String EXECUTOR_METHOD_NAME = "executor$";
+
+    static final String FREEZE_METHOD_NAME = "freeze$";
+
+    static final String INVALIDATE_METHOD_SUFFIX = "$invalidate";
+
+    static final String NANO_TIME_METHOD_NAME = "nanoTime$";
+
+    static final String NEW_METHOD_NAME = "new$";
+
+    static final String RECONFIGURE_METHOD_NAME = "reconfigure$";
+
+    static final String REGISTER_STATS_METHOD_NAME = "registerStats$";
+
+    static final String RELEASE_THREAD_LOCALS_METHOD_NAME = "releaseThreadLocals$";
+
+    static final String RELEASING_THREAD_LOCALS_METHOD_NAME = "releasingThreadLocals$";
+
+    static final String RUN_SCOPED_METHOD_NAME = "runScoped$";
+
+    static final String SHARED_METHOD_NAME = "shared$";
+
+    static final String STATS_METHOD_NAME = "stats$";
+
+    static final String WARM_UP_METHOD_NAME = "warmUp$";
+
+    private static final Set<String> RESERVED_METHOD_NAMES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            ADVANCE_EPOCH_METHOD_NAME, CALL_SCOPED_METHOD_NAME, EXECUTOR_METHOD_NAME, FREEZE_METHOD_NAME,
+            NANO_TIME_METHOD_NAME, RECONFIGURE_METHOD_NAME, REGISTER_STATS_METHOD_NAME, RELEASE_THREAD_LOCALS_METHOD_NAME,
+            RELEASING_THREAD_LOCALS_METHOD_NAME, RUN_SCOPED_METHOD_NAME, STATS_METHOD_NAME, WARM_UP_METHOD_NAME)));
+
+    private static final List<String> RESERVED_METHOD_SUFFIXES =
+            Collections.unmodifiableList(Arrays.asList(APPLY_METHOD_SUFFIX, CACHE_STATS_METHOD_SUFFIX, INVALIDATE_METHOD_SUFFIX));
+
     private static final String OBJECT_CLASSNAME = Object.class.getName();
 
     private static final String VOID_CLASSNAME = Void.class.getName();
 
+    private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+)\\s*(ns|us|ms|s|m|h|d)");
+
+    private static final Map<String, ChronoUnit> DURATION_UNITS;
+
+    static {
+        val units = new HashMap<String, ChronoUnit>();
+        units.put("ns", ChronoUnit.NANOS);
+        units.put("us", ChronoUnit.MICROS);
+        units.put("ms", ChronoUnit.MILLIS);
+        units.put("s", ChronoUnit.SECONDS);
+        units.put("m", ChronoUnit.MINUTES);
+        units.put("h", ChronoUnit.HOURS);
+        units.put("d", ChronoUnit.DAYS);
+        DURATION_UNITS = Collections.unmodifiableMap(units);
+    }
+
     static CachingStrategy cachingStrategy(Element e) {
         return Stream
                 .of(
@@ -77,6 +137,71 @@ final class Utils {
                 .orElse(e.getSimpleName().toString());
     }
 
+    static String ttl(Element e) {
+        return Stream
+                .of(
+                        delegatingResolver(CacheNullable.class, CacheNullable::ttl),
+                        delegatingResolver(Cache.class, Cache::ttl)
+                )
+                .map(f -> f.apply(e))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .findFirst()
+                .orElse("");
+    }
+
+    static String backoff(Element e) {
+        return Stream
+                .of(
+                        delegatingResolver(CacheNullable.class, CacheNullable::backoff),
+                        delegatingResolver(Cache.class, Cache::backoff)
+                )
+                .map(f -> f.apply(e))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .findFirst()
+                .orElse("");
+    }
+
+    static boolean refreshAhead(Element e) {
+        return Stream
+                .of(
+                        delegatingResolver(CacheNullable.class, CacheNullable::refreshAhead),
+                        delegatingResolver(Cache.class, Cache::refreshAhead)
+                )
+                .map(f -> f.apply(e))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .findFirst()
+                .orElse(false);
+    }
+
+    static int maxSize(Element e) {
+        return Stream
+                .of(
+                        delegatingResolver(CacheNullable.class, CacheNullable::maxSize),
+                        delegatingResolver(Cache.class, Cache::maxSize)
+                )
+                .map(f -> f.apply(e))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .findFirst()
+                .orElse(0);
+    }
+
+    static Optional<Duration> parseDuration(final String s) {
+        val matcher = DURATION_PATTERN.matcher(s.trim());
+        try {
+            return Optional
+                    .of(matcher.matches()
+                            ? Duration.of(Long.parseLong(matcher.group(1)), DURATION_UNITS.get(matcher.group(2)))
+                            : Duration.parse(s.trim()))
+                    .filter(d -> !d.isNegative() && !d.isZero() && d.toNanos() > 0);
+        } catch (ArithmeticException | DateTimeParseException | NumberFormatException ignored) {
+            return Optional.empty();
+        }
+    }
+
     private static <A extends Annotation, T> Function<Element, Optional<T>> delegatingResolver(
             Class<A> klass,
             Function<? super A, T> func
@@ -100,6 +225,27 @@ final class Utils {
         return getAnnotation(c, k).isPresent();
     }
 
+    static boolean hasCachingAnnotation(Element e) {
+        return hasAnnotation(e, Cache.class) || hasAnnotation(e, CacheNullable.class);
+    }
+
+    // Returns true if the name of the given method is the name of a method which the companion class may implement.
+    static boolean isReserved(ExecutableElement e) {
+        val name = e.getSimpleName().toString();
+        return RESERVED_METHOD_NAMES.contains(name) || reservedMethodPrefix(e).isPresent();
+    }
+
+    // Returns the name of the module method which the given method belongs to, e.g. "foo" for "foo$invalidate".
+    static Optional<String> reservedMethodPrefix(ExecutableElement e) {
+        val name = e.getSimpleName().toString();
+        return RESERVED_METHOD_SUFFIXES
+                .stream()
+                .filter(name::endsWith)
+                .map(suffix -> name.substring(0, name.length() - suffix.length()))
+                .filter(prefix -> !prefix.isEmpty() && !prefix.contains("$"))
+                .findFirst();
+    }
+
     static boolean isParameterLess(ExecutableElement e) {
         return e.getParameters().isEmpty() && e.getTypeParameters().isEmpty();
     }
@@ -0,0 +1,40 @@
+package bali.java
+
+import org.scalatest.matchers.should.Matchers._
+import org.scalatest.prop.TableDrivenPropertyChecks._
+import org.scalatest.wordspec.AnyWordSpec
+
+class FeaturesSpec extends AnyWordSpec {
+
+  "Features" should {
+    "depend on the release" in {
+      val tests = Table(
+        ("release", "varHandles", "localStaticMembers"),
+        (8, false, false),
+        (9, true, false),
+        (16, true, true),
+      )
+      forAll(tests) { (release, varHandles, localStaticMembers) =>
+        val features = new Features(release, false, false)
+        features.varHandles shouldBe varHandles
+        features.localStaticMembers shouldBe localStaticMembers
+      }
+    }
+
+    "emit JDK Flight Recorder events only if enabled and supported by the release" in {
+      val tests = Table(
+        ("release", "option", "jfr", "jfrIgnored"),
+        (8, false, false, false),
+        (8, true, false, true),
+        (10, true, false, true),
+        (11, false, false, false),
+        (11, true, true, false),
+      )
+      forAll(tests) { (release, option, jfr, jfrIgnored) =>
+        val features = new Features(release, false, option)
+        features.jfr shouldBe jfr
+        features.jfrIgnored shouldBe jfrIgnored
+      }
+    }
+  }
+}